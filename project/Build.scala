@@ -32,7 +32,6 @@ object MinimalBuild extends Build {
     publishArtifact in packageDoc := false,
     // disable using the Scala version in output paths and artifacts
     crossPaths := false,
-    libraryDependencies += "com.googlecode" % "reflectasm" % "1.01",
     libraryDependencies += "junit" % "junit" % "4.8.2"
     )
 }
@@ -0,0 +1,273 @@
+package com.romix.quickser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Packs array elements at fixed bit width, either as difference from
+ * reference value (frame of reference) or as difference from previous
+ * element (delta). Bits are written from lowest bit of first byte.
+ */
+final class BitPacker {
+
+	private BitPacker() {
+	}
+
+	/** number of bits needed for unsigned value */
+	static int bitWidth(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	/** number of bytes taken by count values packed at given width */
+	static long packedSize(int count, int bits) {
+		return ((long) count * bits + 7) >>> 3;
+	}
+
+	/**
+	 * Writes elements of array from index <code>from</code>. If
+	 * <code>delta</code> is true, each element is written as difference
+	 * from previous one and <code>ref</code> is the element before first,
+	 * otherwise all elements are written as difference from
+	 * <code>ref</code>. Differences must fit into <code>bits</code> as
+	 * unsigned values.
+	 */
+	static void packInts(DataOutput out, int[] a, int from, int ref,
+			boolean delta, int bits) throws IOException {
+		long acc = 0;
+		int accBits = 0;
+		for (int i = from; i < a.length; i++) {
+			final long v = (a[i] - ref) & 0xFFFFFFFFL;
+			if (delta)
+				ref = a[i];
+			acc |= v << accBits;
+			accBits += bits;
+			while (accBits >= 8) {
+				out.write((int) acc);
+				acc >>>= 8;
+				accBits -= 8;
+			}
+		}
+		if (accBits > 0)
+			out.write((int) acc);
+	}
+
+	static void unpackInts(DataInput in, int[] a, int from, int ref,
+			boolean delta, int bits) throws IOException {
+		final long mask = (1L << bits) - 1;
+		long acc = 0;
+		int accBits = 0;
+		for (int i = from; i < a.length; i++) {
+			while (accBits < bits) {
+				acc |= (long) in.readUnsignedByte() << accBits;
+				accBits += 8;
+			}
+			a[i] = ref + (int) (acc & mask);
+			if (delta)
+				ref = a[i];
+			acc >>>= bits;
+			accBits -= bits;
+		}
+	}
+
+	/**
+	 * Writes elements of long array the same way as
+	 * {@link #packInts(DataOutput, int[], int, int, boolean, int)}
+	 */
+	static void packLongs(DataOutput out, long[] a, int from, long ref,
+			boolean delta, int bits) throws IOException {
+		final BitOutput bo = new BitOutput(out);
+		for (int i = from; i < a.length; i++) {
+			bo.write(a[i] - ref, bits);
+			if (delta)
+				ref = a[i];
+		}
+		bo.flush();
+	}
+
+	static void unpackLongs(DataInput in, long[] a, int from, long ref,
+			boolean delta, int bits) throws IOException {
+		final BitInput bi = new BitInput(in);
+		for (int i = from; i < a.length; i++) {
+			a[i] = ref + bi.read(bits);
+			if (delta)
+				ref = a[i];
+		}
+	}
+
+	/**
+	 * Writes doubles XORed with previous element, as in Gorilla time series
+	 * compression. Equal neighbours take single bit, close ones only
+	 * differing bits of mantissa.
+	 * 
+	 * @param out
+	 *            output, or null to only count bits
+	 * @return number of bits written
+	 */
+	static long packXor(DataOutput out, double[] a) throws IOException {
+		final BitOutput bo = new BitOutput(out);
+		final XorState state = new XorState(64);
+		for (double d : a)
+			state.write(bo, Double.doubleToLongBits(d));
+		bo.flush();
+		return bo.size;
+	}
+
+	static void unpackXor(DataInput in, double[] a) throws IOException {
+		final BitInput bi = new BitInput(in);
+		final XorState state = new XorState(64);
+		for (int i = 0; i < a.length; i++)
+			a[i] = Double.longBitsToDouble(state.read(bi));
+	}
+
+	/**
+	 * Writes floats the same way as {@link #packXor(DataOutput, double[])}
+	 */
+	static long packXor(DataOutput out, float[] a) throws IOException {
+		final BitOutput bo = new BitOutput(out);
+		final XorState state = new XorState(32);
+		for (float f : a)
+			state.write(bo, Float.floatToIntBits(f) & 0xFFFFFFFFL);
+		bo.flush();
+		return bo.size;
+	}
+
+	static void unpackXor(DataInput in, float[] a) throws IOException {
+		final BitInput bi = new BitInput(in);
+		final XorState state = new XorState(32);
+		for (int i = 0; i < a.length; i++)
+			a[i] = Float.intBitsToFloat((int) state.read(bi));
+	}
+
+	/**
+	 * Previous value and window of meaningful bits of XOR encoding. First
+	 * value is written in full. Next values are written as XOR with previous
+	 * value: single 0 bit if equal, or 1 bit followed by 0 bit and bits of
+	 * previous window if they fit into it, or 1 bit followed by 1 bit,
+	 * 5 bits of leading zeros, 6 bits of length - 1 and meaningful bits.
+	 */
+	private static final class XorState {
+		final int width;
+		long prev;
+		boolean first = true;
+		int leading = -1;
+		int trailing;
+
+		XorState(int width) {
+			this.width = width;
+		}
+
+		void write(BitOutput bo, long v) throws IOException {
+			if (first) {
+				first = false;
+				bo.write(v, width);
+			} else {
+				final long xor = v ^ prev;
+				if (xor == 0) {
+					bo.write(0, 1);
+				} else {
+					final int lead = Math.min(31, Long.numberOfLeadingZeros(xor)
+							- (64 - width));
+					final int trail = Long.numberOfTrailingZeros(xor);
+					if (leading >= 0 && lead >= leading && trail >= trailing) {
+						bo.write(1, 2);
+						bo.write(xor >>> trailing, width - leading - trailing);
+					} else {
+						final int len = width - lead - trail;
+						bo.write(3, 2);
+						bo.write(lead, 5);
+						bo.write(len - 1, 6);
+						bo.write(xor >>> trail, len);
+						leading = lead;
+						trailing = trail;
+					}
+				}
+			}
+			prev = v;
+		}
+
+		long read(BitInput bi) throws IOException {
+			if (first) {
+				first = false;
+				prev = bi.read(width);
+			} else if (bi.read(1) != 0) {
+				if (bi.read(1) != 0) {
+					leading = (int) bi.read(5);
+					trailing = width - leading - (int) bi.read(6) - 1;
+				}
+				prev ^= bi.read(width - leading - trailing) << trailing;
+			}
+			return prev;
+		}
+	}
+
+	/** Writes values of any bit width, lowest bits first */
+	private static final class BitOutput {
+		// null if bits are only counted
+		final DataOutput out;
+		long size;
+		long acc;
+		int accBits;
+
+		BitOutput(DataOutput out) {
+			this.out = out;
+		}
+
+		/** writes lowest bits of value, higher bits must be zero */
+		void write(long v, int bits) throws IOException {
+			size += bits;
+			if (out == null)
+				return;
+			acc |= v << accBits;
+			accBits += bits;
+			if (accBits >= 64) {
+				for (int j = 0; j < 64; j += 8)
+					out.write((int) (acc >>> j));
+				accBits -= 64;
+				// bits of value which did not fit into accumulator
+				acc = accBits == 0 ? 0 : v >>> (bits - accBits);
+			}
+			while (accBits >= 8) {
+				out.write((int) acc);
+				acc >>>= 8;
+				accBits -= 8;
+			}
+		}
+
+		void flush() throws IOException {
+			if (out != null && accBits > 0)
+				out.write((int) acc);
+		}
+	}
+
+	private static final class BitInput {
+		final DataInput in;
+		long acc;
+		int accBits;
+
+		BitInput(DataInput in) {
+			this.in = in;
+		}
+
+		long read(int bits) throws IOException {
+			final long mask = bits == 64 ? -1L : (1L << bits) - 1;
+			long v = acc;
+			if (accBits >= bits) {
+				acc = bits == 64 ? 0 : acc >>> bits;
+				accBits -= bits;
+			} else {
+				int b = 0;
+				while (accBits < bits) {
+					b = in.readUnsignedByte();
+					v |= (long) b << accBits;
+					accBits += 8;
+				}
+				// remaining high bits of last byte belong to next value
+				accBits -= bits;
+				acc = b >>> (8 - accBits);
+			}
+			return v & mask;
+		}
+	}
+
+}
@@ -106,7 +106,9 @@ class DataInputOutput implements DataInput, DataOutput, ObjectInput, ObjectOutpu
     }
 
     public char readChar() throws IOException {
-        return (char) readInt();
+        return (char)
+                (((buf[pos++] & 0xff) << 8) |
+                        ((buf[pos++] & 0xff) << 0));
     }
 
     public int readInt() throws IOException {
@@ -192,7 +194,7 @@ class DataInputOutput implements DataInput, DataOutput, ObjectInput, ObjectOutpu
     }
 
     public void writeChar(int v) throws IOException {
-        writeInt(v);
+        writeShort(v);
     }
 
     public void writeInt(int v) throws IOException {
@@ -238,6 +240,153 @@ class DataInputOutput implements DataInput, DataOutput, ObjectInput, ObjectOutpu
         Serialization.serializeString(this, s);
     }
 
+    /**
+     * Writes chars of string as single bytes, string must not contain chars
+     * over 255
+     */
+    @SuppressWarnings("deprecation")
+    void writeLatin1(String s) {
+        final int len = s.length();
+        ensureAvail(len);
+        s.getBytes(0, len, buf, pos);
+        pos += len;
+    }
+
+    @SuppressWarnings("deprecation")
+    String readLatin1(int len) {
+        String s = new String(buf, 0, pos, len);
+        pos += len;
+        return s;
+    }
+
+    /**
+     * Writes chars of string in UTF-8, surrogates are encoded separately
+     */
+    void writeUtf8(String s) {
+        final int len = s.length();
+        ensureAvail(len * 3);
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        int i = 0;
+        // ASCII prefix
+        for (char c; i < len && (c = s.charAt(i)) < 0x80; i++)
+            buf[pos++] = (byte) c;
+        for (; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.pos = pos;
+    }
+
+    String readUtf8(int len) {
+        final char[] chars = new char[len];
+        readUtf8(chars);
+        return new String(chars);
+    }
+
+    /**
+     * Writes chars one byte per char, array must not contain chars over 255
+     */
+    void writeLatin1(char[] chars) {
+        final int len = chars.length;
+        ensureAvail(len);
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        for (int i = 0; i < len; i++)
+            buf[pos++] = (byte) chars[i];
+        this.pos = pos;
+    }
+
+    void readLatin1(char[] chars) {
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = (char) (buf[pos++] & 0xff);
+        this.pos = pos;
+    }
+
+    /**
+     * Writes chars in UTF-8 the same way as {@link #writeUtf8(String)}
+     */
+    void writeUtf8(char[] chars) {
+        final int len = chars.length;
+        ensureAvail(len * 3);
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        for (int i = 0; i < len; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.pos = pos;
+    }
+
+    void readUtf8(char[] chars) {
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        for (int i = 0; i < chars.length; i++) {
+            final int b = buf[pos++] & 0xff;
+            if (b < 0x80) {
+                chars[i] = (char) b;
+            } else if (b < 0xE0) {
+                chars[i] = (char) (((b & 0x1F) << 6) | (buf[pos++] & 0x3F));
+            } else {
+                chars[i] = (char) (((b & 0x0F) << 12)
+                        | ((buf[pos++] & 0x3F) << 6) | (buf[pos++] & 0x3F));
+            }
+        }
+        this.pos = pos;
+    }
+
+    /**
+     * Writes booleans packed 8 per byte, first element goes to lowest bit
+     */
+    void writeBooleans(boolean[] a) {
+        final int len = a.length;
+        ensureAvail((len + 7) >>> 3);
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        for (int i = 0; i < len; i += 8) {
+            int b = 0;
+            final int end = Math.min(len, i + 8);
+            for (int j = i; j < end; j++)
+                if (a[j])
+                    b |= 1 << (j - i);
+            buf[pos++] = (byte) b;
+        }
+        this.pos = pos;
+    }
+
+    void readBooleans(boolean[] a) {
+        final byte[] buf = this.buf;
+        int pos = this.pos;
+        final int len = a.length;
+        for (int i = 0; i < len; i += 8) {
+            final int b = buf[pos++];
+            final int end = Math.min(len, i + 8);
+            for (int j = i; j < end; j++)
+                a[j] = (b & (1 << (j - i))) != 0;
+        }
+        this.pos = pos;
+    }
+
     /** helper method to write data directly from PageIo*/
     public void writeFromByteBuffer(ByteBuffer b, int offset, int length) {
         ensureAvail(length);
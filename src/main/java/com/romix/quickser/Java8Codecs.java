@@ -0,0 +1,114 @@
+package com.romix.quickser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.Optional;
+
+import com.romix.quickser.Serialization.Codec;
+import com.romix.quickser.Serialization.FastArrayList;
+
+import static com.romix.quickser.SerializationHeader.*;
+
+/**
+ * Codecs for java.time classes and Optional. This class is loaded only if
+ * these classes are available, so serialization still works on older JVMs.
+ */
+@SuppressWarnings("unchecked")
+final class Java8Codecs {
+
+	private Java8Codecs() {
+	}
+
+	/** immutable value classes, which are not added to object stack */
+	static final Class[] VALUE_CLASSES = { Instant.class, LocalDate.class,
+			LocalDateTime.class, Duration.class };
+
+	static void register(Map<Class, Codec> codecs) {
+		codecs.put(Instant.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				Instant i = (Instant) obj;
+				out.write(INSTANT);
+				LongPacker.packLongZigZag(out, i.getEpochSecond());
+				LongPacker.packInt(out, i.getNano());
+			}
+		});
+		codecs.put(LocalDate.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(LOCAL_DATE);
+				LongPacker.packLongZigZag(out, ((LocalDate) obj).toEpochDay());
+			}
+		});
+		codecs.put(LocalDateTime.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				LocalDateTime d = (LocalDateTime) obj;
+				out.write(LOCAL_DATE_TIME);
+				LongPacker.packLongZigZag(out, d.toLocalDate().toEpochDay());
+				LongPacker.packInt(out, d.toLocalTime().toSecondOfDay());
+				LongPacker.packInt(out, d.getNano());
+			}
+		});
+		codecs.put(Duration.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				Duration d = (Duration) obj;
+				out.write(DURATION);
+				LongPacker.packLongZigZag(out, d.getSeconds());
+				LongPacker.packInt(out, d.getNano());
+			}
+		});
+		codecs.put(Optional.class, new Codec(true) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(OPTIONAL);
+				ser.serialize(out, ((Optional) obj).orElse(null), objectStack);
+			}
+		});
+	}
+
+	static Object read(int head, DataInput is) throws IOException {
+		switch (head) {
+		case INSTANT:
+			final long seconds = LongPacker.unpackLongZigZag(is);
+			return Instant.ofEpochSecond(seconds, LongPacker.unpackInt(is));
+		case LOCAL_DATE:
+			return LocalDate.ofEpochDay(LongPacker.unpackLongZigZag(is));
+		case LOCAL_DATE_TIME:
+			final LocalDate date = LocalDate.ofEpochDay(LongPacker
+					.unpackLongZigZag(is));
+			final LocalTime time = LocalTime.ofSecondOfDay(LongPacker
+					.unpackInt(is));
+			return LocalDateTime.of(date, time.withNano(LongPacker
+					.unpackInt(is)));
+		case DURATION:
+			final long durationSeconds = LongPacker.unpackLongZigZag(is);
+			return Duration.ofSeconds(durationSeconds, LongPacker
+					.unpackInt(is));
+		default:
+			throw new InternalError("Unknown serialization header: " + head);
+		}
+	}
+
+	/**
+	 * Reads Optional. Writer adds Optional to object stack before its
+	 * value, so its position is reserved before value is read.
+	 */
+	static Optional readOptional(Serialization ser, DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int pos = objectStack.reserve();
+		final Optional ret = Optional.ofNullable(ser.deserialize(is,
+				objectStack));
+		objectStack.set(pos, ret);
+		return ret;
+	}
+}
@@ -100,4 +100,65 @@ public final class LongPacker {
 
 	}
 
+	/**
+	 * Pack int of any sign into output stream using ZigZag encoding, so
+	 * small negative values occupy small space too. It will occupy 1-5 bytes.
+	 * 
+	 * @param os
+	 * @param value
+	 * @throws IOException
+	 */
+	static public void packIntZigZag(DataOutput os, int value)
+			throws IOException {
+		value = (value << 1) ^ (value >> 31);
+		while ((value & ~0x7F) != 0) {
+			os.write(((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		os.write((byte) value);
+	}
+
+	static public int unpackIntZigZag(DataInput is) throws IOException {
+		final int value = unpackInt(is);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Pack long of any sign into output stream using ZigZag encoding. It will
+	 * occupy 1-10 bytes.
+	 * 
+	 * @param os
+	 * @param value
+	 * @throws IOException
+	 */
+	static public void packLongZigZag(DataOutput os, long value)
+			throws IOException {
+		value = (value << 1) ^ (value >> 63);
+		while ((value & ~0x7FL) != 0) {
+			os.write((((int) value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		os.write((byte) value);
+	}
+
+	static public long unpackLongZigZag(DataInput is) throws IOException {
+		final long value = unpackLong(is);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Returns number of bytes non-negative value occupies when packed
+	 */
+	static int packedSize(long value) {
+		return (70 - Long.numberOfLeadingZeros(value | 1)) / 7;
+	}
+
+	/**
+	 * Returns number of bytes value occupies when packed with ZigZag encoding
+	 */
+	static int zigZagSize(long value) {
+		return packedSize((value << 1) ^ (value >> 63));
+	}
+
 }
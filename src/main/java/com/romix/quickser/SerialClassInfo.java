@@ -3,17 +3,16 @@ package com.romix.quickser;
 import com.romix.quickser.Serialization.FastArrayList;
 
 import java.io.*;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.esotericsoftware.reflectasm.FieldAccess;
-import com.esotericsoftware.reflectasm.MethodAccess;
-
 /**
  * This class stores information about serialized classes and fields.
  */
@@ -80,6 +79,19 @@ abstract class SerialClassInfo {
 		private final Map<String, FieldInfo> name2fieldInfo = new HashMap<String, FieldInfo>();
 		private final Map<String, Integer> name2fieldId = new HashMap<String, Integer>();
 		private ObjectStreamField[] objectStreamFields;
+		// fields of current class version in order they are written, and
+		// their ids in this class info. Computed on first write.
+		private FieldInfo[] writeFields;
+		private int[] writeFieldIds;
+		private boolean positional;
+		// constants of enum class, cached on first read
+		private Object[] enumConstants;
+		// constructor of collection or map class, cached on first read
+		private Constructor constructor;
+		private boolean capacityConstructor;
+		// constructor of collection with single argument, cached on first
+		// read
+		private Constructor argConstructor;
 
 		final boolean isEnum;
 
@@ -139,6 +151,25 @@ abstract class SerialClassInfo {
 		public boolean getEnum() {
 			return isEnum;
 		}
+
+		FieldInfo[] getWriteFields() {
+			return writeFields;
+		}
+
+		int[] getWriteFieldIds() {
+			return writeFieldIds;
+		}
+
+		boolean isPositional() {
+			return positional;
+		}
+
+		void setWritePlan(FieldInfo[] writeFields, int[] writeFieldIds,
+				boolean positional) {
+			this.writeFieldIds = writeFieldIds;
+			this.positional = positional;
+			this.writeFields = writeFields;
+		}
 	}
 
 	/**
@@ -146,9 +177,7 @@ abstract class SerialClassInfo {
 	 * 'java.io.ObjectFieldClass'
 	 */
 	static class FieldInfo {
-		// If set, then ASM framework will be used to
-		// generate very fast getters and setters
-		static private boolean useASM = true;
+		static final int UNRESOLVED = -2;
 
 		private final String name;
 		private final boolean primitive;
@@ -156,10 +185,18 @@ abstract class SerialClassInfo {
 		private Class typeClass;
 		// Class containing this field
 		private final Class clazz;
-		private Object setter;
-		private int setterIndex;
-		private Object getter;
-		private int getterIndex;
+		// one of JVM type codes ('I', 'J', 'D'...), 'L' for references and
+		// 'E' for enums
+		final char typeCode;
+		// constants of enum field type, written as ordinal
+		final Object[] enumConstants;
+		// class id of final field type written without class header, -1 if
+		// field is written with header. Resolved on first use by Serialization
+		int finalClassId = UNRESOLVED;
+		// field offset for direct access trough Unsafe, -1 if not available
+		private long offset = -1;
+		private FieldSetter setter;
+		private FieldGetter getter;
 		private ObjectStreamField objStreamField;
 
 		public FieldInfo(String name, boolean primitive, String type,
@@ -168,134 +205,86 @@ abstract class SerialClassInfo {
 			this.primitive = primitive;
 			this.type = type;
 			this.clazz = clazz;
-			try {
-				this.typeClass = Class.forName(type);
-			} catch (ClassNotFoundException e) {
-				this.typeClass = null;
+			this.typeClass = PRIMITIVE_TYPES.get(type);
+			if (typeClass == null) {
+				try {
+					this.typeClass = Class.forName(type);
+				} catch (ClassNotFoundException e) {
+					this.typeClass = null;
+				}
 			}
-			initSetter();
-			initGetter();
-		}
-
-		private void initSetter() {
-			// Set setter
-			String setterName = "set" + firstCharCap(name);
-
-			Class aClazz = clazz;
-
-			// iterate over class hierarchy, until root class
-			while (aClazz != Object.class) {
-				// check if there is getMethod
+			this.enumConstants = typeClass != null && typeClass.isEnum() ? typeClass
+					.getEnumConstants() : null;
+			this.typeCode = enumConstants != null ? 'E' : typeCode(type);
+			Field field = findField();
+			if (field != null && unsafe != null) {
 				try {
-					Method m = aClazz.getMethod(setterName, typeClass);
-					if (m != null) {
-						if (useASM) {
-							try {
-								MethodAccess methodAccess = MethodAccess
-										.get(aClazz);
-								int methodIndex = methodAccess
-										.getIndex(setterName);
-
-								setter = methodAccess;
-								setterIndex = methodIndex;
-								return;
-							} catch (Exception e) {
-							}
-						}
-						// Fall back to Java reflection
-						setter = m;
-						return;
-					}
+					offset = unsafe.objectFieldOffset(field);
 				} catch (Exception e) {
-					// e.printStackTrace();
+					// hidden classes, records etc.
+					offset = -1;
 				}
+			}
+			initSetter(field);
+			initGetter(field);
+		}
 
-				// no get method, access field directly
+		private Field findField() {
+			Class aClazz = clazz;
+			// iterate over class hierarchy, until root class
+			while (aClazz != null && aClazz != Object.class) {
 				try {
-					if (useASM) {
-						try {
-							FieldAccess fieldAccess = FieldAccess.get(aClazz);
-							int fieldIndex = fieldAccess.getIndex(name);
-							setter = fieldAccess;
-							setterIndex = fieldIndex;
-							return;
-						} catch (Exception e) {
-						}
-					}
-
-					// Fall back to Java reflection
-					Field f = aClazz.getDeclaredField(name);
-					// security manager may not be happy about this
-					if (!f.isAccessible())
-						f.setAccessible(true);
-					setter = f;
-					return;
+					return aClazz.getDeclaredField(name);
 				} catch (Exception e) {
 					// e.printStackTrace();
 				}
 				// move to superclass
 				aClazz = aClazz.getSuperclass();
 			}
+			return null;
 		}
 
-		private void initGetter() {
-			// Set setter
-			String getterName = "get" + firstCharCap(name);
-
-			Class aClazz = clazz;
-
-			// iterate over class hierarchy, until root class
-			while (aClazz != Object.class) {
-				// check if there is getMethod
+		private void initSetter(Field field) {
+			// primitive fields are always accessed directly, so they can be
+			// set without boxing
+			if (!primitive || field == null) {
+				// check if there is set method
 				try {
-					Method m = aClazz.getMethod(getterName);
-					if (m != null) {
-						if (useASM) {
-							try {
-								MethodAccess methodAccess = MethodAccess
-										.get(aClazz);
-								int methodIndex = methodAccess
-										.getIndex(getterName);
-
-								getter = methodAccess;
-								getterIndex = methodIndex;
-								return;
-							} catch (Exception e) {
-							}
-						}
-						// Fall back to Java reflection
-						getter = m;
-						return;
-					}
+					Method m = clazz.getMethod("set" + firstCharCap(name),
+							typeClass);
+					setter = new MethodSetter(accessible(m));
+					return;
 				} catch (Exception e) {
 					// e.printStackTrace();
 				}
+			}
+			if (field == null)
+				setter = null;
+			else if (offset >= 0)
+				setter = new UnsafeFieldSetter(offset, typeCode);
+			else
+				// Fall back to Java reflection
+				setter = new ReflectionFieldSetter(accessible(field));
+		}
 
-				// no get method, access field directly
+		private void initGetter(Field field) {
+			if (!primitive || field == null) {
+				// check if there is get method
 				try {
-					if (useASM) {
-						try {
-							FieldAccess fieldAccess = FieldAccess.get(aClazz);
-							int fieldIndex = fieldAccess.getIndex(name);
-							getter = fieldAccess;
-							getterIndex = fieldIndex;
-							return;
-						} catch (Exception e) {
-						}
-					}
-					// Fall back to Java reflection
-					Field f = aClazz.getDeclaredField(name);
-					// security manager may not be happy about this
-					if (!f.isAccessible())
-						f.setAccessible(true);
-					getter = f;
+					Method m = clazz.getMethod("get" + firstCharCap(name));
+					getter = new MethodGetter(accessible(m));
 					return;
 				} catch (Exception e) {
 					// e.printStackTrace();
 				}
-				// move to superclass
-				aClazz = aClazz.getSuperclass();
 			}
+			if (field == null)
+				getter = null;
+			else if (offset >= 0)
+				getter = new UnsafeFieldGetter(offset, typeCode);
+			else
+				// Fall back to Java reflection
+				getter = new ReflectionFieldGetter(accessible(field));
 		}
 
 		public FieldInfo(ObjectStreamField sf, Class clazz) {
@@ -315,6 +304,10 @@ abstract class SerialClassInfo {
 			return type;
 		}
 
+		Class getTypeClass() {
+			return typeClass;
+		}
+
 		private String firstCharCap(String s) {
 			return Character.toUpperCase(s.charAt(0)) + s.substring(1);
 		}
@@ -322,6 +315,341 @@ abstract class SerialClassInfo {
 		public ObjectStreamField getObjStreamField() {
 			return objStreamField;
 		}
+
+		Object get(Object obj) {
+			try {
+				return getter.get(obj);
+			} catch (Exception e) {
+
+			}
+
+			throw new NoSuchFieldError(obj.getClass() + "." + name);
+		}
+
+		void set(Object obj, Object value) {
+			try {
+				setter.set(obj, value);
+				return;
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+
+			throw new NoSuchFieldError(obj.getClass() + "." + name);
+		}
+
+		// Primitive accessors. They go directly to memory if field offset is
+		// known, otherwise value is boxed and passed to getter or setter.
+
+		int getInt(Object obj) {
+			return offset >= 0 ? unsafe.getInt(obj, offset) : (Integer) get(obj);
+		}
+
+		long getLong(Object obj) {
+			return offset >= 0 ? unsafe.getLong(obj, offset) : (Long) get(obj);
+		}
+
+		double getDouble(Object obj) {
+			return offset >= 0 ? unsafe.getDouble(obj, offset) : (Double) get(obj);
+		}
+
+		float getFloat(Object obj) {
+			return offset >= 0 ? unsafe.getFloat(obj, offset) : (Float) get(obj);
+		}
+
+		short getShort(Object obj) {
+			return offset >= 0 ? unsafe.getShort(obj, offset) : (Short) get(obj);
+		}
+
+		byte getByte(Object obj) {
+			return offset >= 0 ? unsafe.getByte(obj, offset) : (Byte) get(obj);
+		}
+
+		char getChar(Object obj) {
+			return offset >= 0 ? unsafe.getChar(obj, offset)
+					: (Character) get(obj);
+		}
+
+		boolean getBoolean(Object obj) {
+			return offset >= 0 ? unsafe.getBoolean(obj, offset)
+					: (Boolean) get(obj);
+		}
+
+		void setInt(Object obj, int value) {
+			if (offset >= 0)
+				unsafe.putInt(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		void setLong(Object obj, long value) {
+			if (offset >= 0)
+				unsafe.putLong(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		void setDouble(Object obj, double value) {
+			if (offset >= 0)
+				unsafe.putDouble(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		void setFloat(Object obj, float value) {
+			if (offset >= 0)
+				unsafe.putFloat(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		void setShort(Object obj, short value) {
+			if (offset >= 0)
+				unsafe.putShort(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		void setByte(Object obj, byte value) {
+			if (offset >= 0)
+				unsafe.putByte(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		void setChar(Object obj, char value) {
+			if (offset >= 0)
+				unsafe.putChar(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		/**
+		 * Returns true if primitive field has value of newly created
+		 * instance (zero or false), so it does not have to be written.
+		 */
+		boolean isDefault(Object obj) {
+			switch (typeCode) {
+			case 'I':
+				return getInt(obj) == 0;
+			case 'J':
+				return getLong(obj) == 0;
+			case 'D':
+				// negative zero must be written
+				return Double.doubleToRawLongBits(getDouble(obj)) == 0;
+			case 'F':
+				return Float.floatToRawIntBits(getFloat(obj)) == 0;
+			case 'S':
+				return getShort(obj) == 0;
+			case 'B':
+				return getByte(obj) == 0;
+			case 'C':
+				return getChar(obj) == 0;
+			default:
+				return !getBoolean(obj);
+			}
+		}
+
+		void setBoolean(Object obj, boolean value) {
+			if (offset >= 0)
+				unsafe.putBoolean(obj, offset, value);
+			else
+				set(obj, value);
+		}
+
+		private static char typeCode(String type) {
+			Class c = PRIMITIVE_TYPES.get(type);
+			if (c == Integer.TYPE)
+				return 'I';
+			if (c == Long.TYPE)
+				return 'J';
+			if (c == Double.TYPE)
+				return 'D';
+			if (c == Float.TYPE)
+				return 'F';
+			if (c == Short.TYPE)
+				return 'S';
+			if (c == Byte.TYPE)
+				return 'B';
+			if (c == Character.TYPE)
+				return 'C';
+			if (c == Boolean.TYPE)
+				return 'Z';
+			return 'L';
+		}
+	}
+
+	static final Map<String, Class> PRIMITIVE_TYPES = new HashMap<String, Class>();
+	static {
+		PRIMITIVE_TYPES.put("int", Integer.TYPE);
+		PRIMITIVE_TYPES.put("long", Long.TYPE);
+		PRIMITIVE_TYPES.put("double", Double.TYPE);
+		PRIMITIVE_TYPES.put("float", Float.TYPE);
+		PRIMITIVE_TYPES.put("short", Short.TYPE);
+		PRIMITIVE_TYPES.put("byte", Byte.TYPE);
+		PRIMITIVE_TYPES.put("char", Character.TYPE);
+		PRIMITIVE_TYPES.put("boolean", Boolean.TYPE);
+	}
+
+	static final sun.misc.Unsafe unsafe = getUnsafe();
+
+	private static sun.misc.Unsafe getUnsafe() {
+		try {
+			Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			return (sun.misc.Unsafe) f.get(null);
+		} catch (Throwable e) {
+			// not available, fall back to reflection
+			return null;
+		}
+	}
+
+	private static <T extends AccessibleObject> T accessible(T o) {
+		// security manager may not be happy about this
+		try {
+			if (!o.isAccessible())
+				o.setAccessible(true);
+		} catch (RuntimeException e) {
+			// public members are still usable
+		}
+		return o;
+	}
+
+	/**
+	 * Reads value of single field. Way of access (getter method or field) is
+	 * chosen once, when field is initialized.
+	 */
+	static abstract class FieldGetter {
+		abstract Object get(Object obj) throws Exception;
+	}
+
+	/**
+	 * Sets value of single field. Way of access (setter method or field) is
+	 * chosen once, when field is initialized.
+	 */
+	static abstract class FieldSetter {
+		abstract void set(Object obj, Object value) throws Exception;
+	}
+
+	static final class MethodGetter extends FieldGetter {
+		private final Method method;
+
+		MethodGetter(Method method) {
+			this.method = method;
+		}
+
+		Object get(Object obj) throws Exception {
+			return method.invoke(obj);
+		}
+	}
+
+	static final class MethodSetter extends FieldSetter {
+		private final Method method;
+
+		MethodSetter(Method method) {
+			this.method = method;
+		}
+
+		void set(Object obj, Object value) throws Exception {
+			method.invoke(obj, value);
+		}
+	}
+
+	static final class ReflectionFieldGetter extends FieldGetter {
+		private final Field field;
+
+		ReflectionFieldGetter(Field field) {
+			this.field = field;
+		}
+
+		Object get(Object obj) throws Exception {
+			return field.get(obj);
+		}
+	}
+
+	static final class ReflectionFieldSetter extends FieldSetter {
+		private final Field field;
+
+		ReflectionFieldSetter(Field field) {
+			this.field = field;
+		}
+
+		void set(Object obj, Object value) throws Exception {
+			field.set(obj, value);
+		}
+	}
+
+	static final class UnsafeFieldGetter extends FieldGetter {
+		private final long offset;
+		private final char typeCode;
+
+		UnsafeFieldGetter(long offset, char typeCode) {
+			this.offset = offset;
+			this.typeCode = typeCode;
+		}
+
+		Object get(Object obj) {
+			switch (typeCode) {
+			case 'I':
+				return unsafe.getInt(obj, offset);
+			case 'J':
+				return unsafe.getLong(obj, offset);
+			case 'D':
+				return unsafe.getDouble(obj, offset);
+			case 'F':
+				return unsafe.getFloat(obj, offset);
+			case 'S':
+				return unsafe.getShort(obj, offset);
+			case 'B':
+				return unsafe.getByte(obj, offset);
+			case 'C':
+				return unsafe.getChar(obj, offset);
+			case 'Z':
+				return unsafe.getBoolean(obj, offset);
+			default:
+				return unsafe.getObject(obj, offset);
+			}
+		}
+	}
+
+	static final class UnsafeFieldSetter extends FieldSetter {
+		private final long offset;
+		private final char typeCode;
+
+		UnsafeFieldSetter(long offset, char typeCode) {
+			this.offset = offset;
+			this.typeCode = typeCode;
+		}
+
+		void set(Object obj, Object value) {
+			switch (typeCode) {
+			case 'I':
+				unsafe.putInt(obj, offset, (Integer) value);
+				break;
+			case 'J':
+				unsafe.putLong(obj, offset, (Long) value);
+				break;
+			case 'D':
+				unsafe.putDouble(obj, offset, (Double) value);
+				break;
+			case 'F':
+				unsafe.putFloat(obj, offset, (Float) value);
+				break;
+			case 'S':
+				unsafe.putShort(obj, offset, (Short) value);
+				break;
+			case 'B':
+				unsafe.putByte(obj, offset, (Byte) value);
+				break;
+			case 'C':
+				unsafe.putChar(obj, offset, (Character) value);
+				break;
+			case 'Z':
+				unsafe.putBoolean(obj, offset, (Boolean) value);
+				break;
+			default:
+				unsafe.putObject(obj, offset, value);
+			}
+		}
 	}
 
 	private ArrayList<ClassInfo> registered;
@@ -404,28 +732,7 @@ abstract class SerialClassInfo {
 	}
 
 	public Object getFieldValue(FieldInfo fieldInfo, Object object) {
-
-		Object fieldAccessor = fieldInfo.getter;
-		try {
-			if (fieldAccessor instanceof MethodAccess) {
-				MethodAccess access = (MethodAccess) fieldAccessor;
-				return access.invoke(object, fieldInfo.getterIndex);
-			} else if (fieldAccessor instanceof FieldAccess) {
-				FieldAccess access = (FieldAccess) fieldAccessor;
-				return access.get(object, fieldInfo.getterIndex);
-			} else if (fieldAccessor instanceof Method) {
-				Method m = (Method) fieldAccessor;
-				return m.invoke(object);
-			} else {
-				Field f = (Field) fieldAccessor;
-				return f.get(object);
-			}
-		} catch (Exception e) {
-
-		}
-
-		throw new NoSuchFieldError(object.getClass() + "."
-				+ fieldInfo.getName());
+		return fieldInfo.get(object);
 	}
 
 	public void setFieldValue(String fieldName, Object object, Object value) {
@@ -440,29 +747,7 @@ abstract class SerialClassInfo {
 	}
 
 	public void setFieldValue(FieldInfo fieldInfo, Object object, Object value) {
-
-		Object fieldAccessor = fieldInfo.setter;
-		try {
-			if (fieldAccessor instanceof MethodAccess) {
-				MethodAccess access = (MethodAccess) fieldAccessor;
-				access.invoke(object, fieldInfo.setterIndex, value);
-			} else if (fieldAccessor instanceof FieldAccess) {
-				FieldAccess access = (FieldAccess) fieldAccessor;
-				access.set(object, fieldInfo.setterIndex, value);
-			} else if (fieldAccessor instanceof Method) {
-				Method m = (Method) fieldAccessor;
-				m.invoke(object, value);
-			} else {
-				Field f = (Field) fieldAccessor;
-				f.set(object, value);
-			}
-			return;
-		} catch (Throwable e) {
-			e.printStackTrace();
-		}
-
-		throw new NoSuchFieldError(object.getClass() + "."
-				+ fieldInfo.getName());
+		fieldInfo.set(object, value);
 	}
 
 	public boolean containsClass(Class clazz) {
@@ -487,13 +772,61 @@ abstract class SerialClassInfo {
 
 	public void writeObject(DataOutput out, Object obj,
 			FastArrayList objectStack) throws IOException {
-		int classId = registerClass(obj.getClass());
+		writeObject(out, obj, registerClass(obj.getClass()), objectStack);
+	}
 
-		// write class header
-		LongPacker.packInt(out, classId);
+	/**
+	 * Flag in object header, fields are written in order of class info and
+	 * without field count and ids
+	 */
+	static final int POSITIONAL = 1;
+	/**
+	 * Flag in object header, positional fields are preceded by bitmap and
+	 * only fields which do not have default value are written
+	 */
+	static final int PRESENCE = 2;
+	/** number of flag bits in object header */
+	static final int OBJECT_FLAG_BITS = 2;
+	static final int OBJECT_FLAG_MASK = (1 << OBJECT_FLAG_BITS) - 1;
+	/**
+	 * Not written in object header, marks object of NORMAL format: class id
+	 * without flags, field count and field ids with values which have their
+	 * own headers
+	 */
+	static final int TAGGED_FIELDS = 1 << OBJECT_FLAG_BITS;
+
+	/**
+	 * Forgets class ids of final field types, so they are resolved again
+	 * after codec of some class changed.
+	 */
+	void resetFinalClassIds() {
+		for (ClassInfo classInfo : registered) {
+			for (FieldInfo field : classInfo.getFields())
+				field.finalClassId = FieldInfo.UNRESOLVED;
+		}
+	}
+
+	/**
+	 * Writes object of class which was already registered under given id.
+	 */
+	void writeObject(DataOutput out, Object obj, int classId,
+			FastArrayList objectStack) throws IOException {
+		writeObject(out, obj, classId, classId << OBJECT_FLAG_BITS,
+				objectStack);
+	}
+
+	/**
+	 * Writes object header followed by fields. Header is sum of given base
+	 * and flags of object, written as packed int. If base does not contain
+	 * class id, reader must know it from other source. Write plan of class is
+	 * compiled on first call.
+	 */
+	void writeObject(DataOutput out, Object obj, int classId, int header,
+			FastArrayList objectStack) throws IOException {
 		ClassInfo classInfo = registered.get(classId);
 
 		if (classInfo.isExternalizable) {
+			LongPacker.packInt(out, header);
 			Externalizable o = (Externalizable) obj;
 			DataInputOutput out2 = (DataInputOutput) out;
 			try {
@@ -507,27 +840,104 @@ abstract class SerialClassInfo {
 			return;
 		}
 
-		ObjectStreamField[] osFields = classInfo.getObjectStreamFields();
-		if (osFields == null)
-			osFields = getFields(obj.getClass());
+		FieldInfo[] fields = classInfo.getWriteFields();
+		if (fields == null) {
+			compileWritePlan(classInfo, obj.getClass());
+			fields = classInfo.getWriteFields();
+		}
+
+		int flags = 0;
+		long bits = 0;
+		// values of reference fields, read once to find defaults and to
+		// write them
+		Object[] values = null;
+		if (classInfo.isPositional()) {
+			flags = POSITIONAL;
+			// enum constants are not created by reader, so their fields must
+			// be always written
+			if (!classInfo.getEnum() && fields.length <= 64) {
+				values = new Object[fields.length];
+				int absent = 0;
+				for (int i = 0; i < fields.length; i++) {
+					final FieldInfo field = fields[i];
+					final boolean isDefault;
+					if (field.isPrimitive()) {
+						isDefault = field.isDefault(obj);
+					} else {
+						values[i] = getFieldValue(field, obj);
+						isDefault = values[i] == null;
+					}
+					if (isDefault)
+						absent++;
+					else
+						bits |= 1L << i;
+				}
+				// bitmap must be smaller than skipped fields, each takes at
+				// least one byte
+				if (absent > presenceBytes(fields.length))
+					flags |= PRESENCE;
+			}
+		}
+
+		// write class header
+		LongPacker.packInt(out, header + flags);
 
 		if (classInfo.getEnum()) {
 			int ordinal = ((Enum) obj).ordinal();
 			LongPacker.packInt(out, ordinal);
 		}
 
-		LongPacker.packInt(out, osFields.length);
+		if ((flags & POSITIONAL) == 0) {
+			int[] fieldIds = classInfo.getWriteFieldIds();
+			LongPacker.packInt(out, fields.length);
+			for (int i = 0; i < fields.length; i++) {
+				// write field ID
+				LongPacker.packInt(out, fieldIds[i]);
+				// and write value
+				writeField(out, obj, fields[i], objectStack);
+			}
+			return;
+		}
+
+		final boolean presence = (flags & PRESENCE) != 0;
+		if (presence) {
+			for (int i = 0, n = presenceBytes(fields.length); i < n; i++)
+				out.write((int) (bits >>> (i << 3)));
+		}
+		for (int i = 0; i < fields.length; i++) {
+			if (presence && (bits & (1L << i)) == 0)
+				continue;
+			if (values == null || fields[i].isPrimitive())
+				writeField(out, obj, fields[i], objectStack);
+			else
+				writeFieldValue(out, values[i], fields[i], objectStack);
+		}
+	}
+
+	private static int presenceBytes(int fieldCount) {
+		return (fieldCount + 7) >>> 3;
+	}
 
-		int fieldNum = 0;
+	/**
+	 * Matches fields of current class version with fields stored in class
+	 * info, so writeObject does not have to do it for every object.
+	 */
+	private void compileWritePlan(ClassInfo classInfo, Class clazz) {
+		ObjectStreamField[] osFields = classInfo.getObjectStreamFields();
+		if (osFields == null)
+			osFields = getFields(clazz);
+
+		FieldInfo[] writeFields = new FieldInfo[osFields.length];
+		int[] writeFieldIds = new int[osFields.length];
 		List<FieldInfo> fields = classInfo.getFields();
-		for (ObjectStreamField f : osFields) {
-			// write field ID
+		for (int fieldNum = 0; fieldNum < osFields.length; fieldNum++) {
+			ObjectStreamField f = osFields[fieldNum];
 			int fieldId = -1;
 			FieldInfo field = (fieldNum < fields.size()) ? fields.get(fieldNum)
 					: null;
 			if (field != null) {
 				ObjectStreamField osField = field.getObjStreamField();
-				if (osField == f || osField.equals(f))
+				if (osField == f || f.equals(osField))
 					fieldId = fieldNum;
 			}
 			if (fieldId < 0)
@@ -535,22 +945,41 @@ abstract class SerialClassInfo {
 			if (fieldId == -1) {
 				// field does not exists in class definition stored in db,
 				// propably new field was added so add field descriptor
-				fieldId = classInfo.addFieldInfo(new FieldInfo(f, obj
-						.getClass()));
+				fieldId = classInfo.addFieldInfo(new FieldInfo(f, clazz));
 			}
-			LongPacker.packInt(out, fieldId);
-			// and write value
-			Object fieldValue = getFieldValue(classInfo.getField(fieldId), obj);
-			serialize(out, fieldValue, objectStack);
-			fieldNum++;
+			writeFieldIds[fieldNum] = fieldId;
+			writeFields[fieldNum] = classInfo.getField(fieldId);
 		}
+		// fields match class info exactly, so ids do not have to be written
+		boolean positional = writeFieldIds.length == fields.size();
+		for (int i = 0; positional && i < writeFieldIds.length; i++)
+			positional = writeFieldIds[i] == i;
+		classInfo.setWritePlan(writeFields, writeFieldIds, positional);
 	}
 
 	public Object readObject(DataInput in, FastArrayList objectStack)
 			throws IOException {
 		// read class header
+		final int header = LongPacker.unpackInt(in);
+		return readObjectBody(in, header >>> OBJECT_FLAG_BITS, header
+				& OBJECT_FLAG_MASK, objectStack);
+	}
+
+	/**
+	 * Reads object written in NORMAL format by older versions.
+	 */
+	public Object readNormalObject(DataInput in, FastArrayList objectStack)
+			throws IOException {
+		return readObjectBody(in, LongPacker.unpackInt(in), TAGGED_FIELDS,
+				objectStack);
+	}
+
+	/**
+	 * Reads object written by writeObject.
+	 */
+	Object readObjectBody(DataInput in, int classId, int flags,
+			FastArrayList objectStack) throws IOException {
 		try {
-			int classId = LongPacker.unpackInt(in);
 			ClassInfo classInfo = registered.get(classId);
 			// Class clazz = Class.forName(classInfo.getName());
 			Class clazz = classId2class.get(classId);
@@ -562,7 +991,7 @@ abstract class SerialClassInfo {
 
 			if (classInfo.getEnum()) {
 				int ordinal = LongPacker.unpackInt(in);
-				o = clazz.getEnumConstants()[ordinal];
+				o = getEnumConstant(classId, ordinal);
 			} else {
 				o = createInstance(clazz, Object.class);
 			}
@@ -580,13 +1009,30 @@ abstract class SerialClassInfo {
 					in2.serializer = null;
 					in2.objectStack = null;
 				}
+			} else if ((flags & PRESENCE) != 0) {
+				List<FieldInfo> fields = classInfo.getFields();
+				final int size = fields.size();
+				long bits = 0;
+				for (int i = 0, n = presenceBytes(size); i < n; i++)
+					bits |= (long) in.readUnsignedByte() << (i << 3);
+				// absent fields keep default value of new instance
+				for (int i = 0; i < size; i++) {
+					if ((bits & (1L << i)) != 0)
+						readField(in, o, fields.get(i), objectStack);
+				}
+			} else if ((flags & POSITIONAL) != 0) {
+				List<FieldInfo> fields = classInfo.getFields();
+				for (int i = 0, size = fields.size(); i < size; i++)
+					readField(in, o, fields.get(i), objectStack);
 			} else {
 				int fieldCount = LongPacker.unpackInt(in);
 				for (int i = 0; i < fieldCount; i++) {
 					int fieldId = LongPacker.unpackInt(in);
 					FieldInfo f = classInfo.getField(fieldId);
-					Object fieldValue = deserialize(in, objectStack);
-					setFieldValue(f, o, fieldValue);
+					if (flags == TAGGED_FIELDS)
+						setFieldValue(f, o, deserialize(in, objectStack));
+					else
+						readField(in, o, f, objectStack);
 				}
 			}
 			return o;
@@ -595,6 +1041,112 @@ abstract class SerialClassInfo {
 		}
 	}
 
+	/**
+	 * Returns constant of registered enum class. Constants are cached in
+	 * class info, since Class.getEnumConstants copies them on every call.
+	 */
+	Object getEnumConstant(int classId, int ordinal)
+			throws ClassNotFoundException {
+		return getEnumConstants(classId)[ordinal];
+	}
+
+	Object[] getEnumConstants(int classId) throws ClassNotFoundException {
+		ClassInfo classInfo = registered.get(classId);
+		Object[] constants = classInfo.enumConstants;
+		if (constants == null) {
+			Class clazz = classId2class.get(classId);
+			if (clazz == null)
+				clazz = Class.forName(classInfo.getName());
+			constants = clazz.getEnumConstants();
+			classInfo.enumConstants = constants;
+		}
+		return constants;
+	}
+
+	/**
+	 * Creates empty collection or map of registered class with constructor
+	 * which takes single argument of given type, such as comparator.
+	 */
+	Object newCollection(int classId, Class parameterType, Object arg)
+			throws ClassNotFoundException {
+		ClassInfo classInfo = registered.get(classId);
+		try {
+			Constructor constructor = classInfo.argConstructor;
+			if (constructor == null) {
+				Class clazz = classId2class.get(classId);
+				if (clazz == null)
+					clazz = Class.forName(classInfo.getName());
+				assertClassSerializable(clazz);
+				constructor = clazz.getDeclaredConstructor(parameterType);
+				if (!Modifier.isPublic(clazz.getModifiers())
+						|| !Modifier.isPublic(constructor.getModifiers()))
+					constructor.setAccessible(true);
+				classInfo.argConstructor = constructor;
+			}
+			return constructor.newInstance(arg);
+		} catch (ClassNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot create object", e);
+		}
+	}
+
+	/**
+	 * Creates empty collection or map of registered class with its no-arg
+	 * constructor. Classes known to take initial capacity in int constructor
+	 * are presized.
+	 */
+	Object newCollection(int classId, int size) throws ClassNotFoundException {
+		ClassInfo classInfo = registered.get(classId);
+		try {
+			Constructor constructor = classInfo.constructor;
+			if (constructor == null) {
+				Class clazz = classId2class.get(classId);
+				if (clazz == null)
+					clazz = Class.forName(classInfo.getName());
+				assertClassSerializable(clazz);
+				if (isCapacityPresized(clazz)) {
+					try {
+						constructor = clazz.getDeclaredConstructor(int.class);
+						classInfo.capacityConstructor = true;
+					} catch (NoSuchMethodException e) {
+						// subclass without capacity constructor
+					}
+				}
+				if (constructor == null)
+					constructor = clazz.getDeclaredConstructor();
+				if (!Modifier.isPublic(clazz.getModifiers())
+						|| !Modifier.isPublic(constructor.getModifiers()))
+					constructor.setAccessible(true);
+				classInfo.constructor = constructor;
+			}
+			return classInfo.capacityConstructor ? constructor
+					.newInstance(size) : constructor.newInstance();
+		} catch (ClassNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot create object", e);
+		}
+	}
+
+	/**
+	 * Returns true if int constructor of class takes initial capacity. Bounded
+	 * queues take maximal size in it, so only classes derived from known hash
+	 * tables and array lists are presized.
+	 */
+	private static boolean isCapacityPresized(Class clazz) {
+		return HashMap.class.isAssignableFrom(clazz)
+				|| java.util.Hashtable.class.isAssignableFrom(clazz)
+				|| java.util.WeakHashMap.class.isAssignableFrom(clazz)
+				|| java.util.HashSet.class.isAssignableFrom(clazz)
+				|| ArrayList.class.isAssignableFrom(clazz)
+				|| java.util.Vector.class.isAssignableFrom(clazz);
+	}
+
 	// TODO dependecy on nonpublic JVM API
 	private sun.reflect.ReflectionFactory rf = sun.reflect.ReflectionFactory
 			.getReflectionFactory();
@@ -631,4 +1183,24 @@ abstract class SerialClassInfo {
 	protected abstract void serialize(DataOutput out, Object fieldValue,
 			FastArrayList objectStack) throws IOException;
 
+	/**
+	 * Writes value of single field, primitive fields are written without
+	 * boxing.
+	 */
+	protected abstract void writeField(DataOutput out, Object obj,
+			FieldInfo field, FastArrayList objectStack) throws IOException;
+
+	/**
+	 * Writes value of reference field which was already read from object.
+	 */
+	protected abstract void writeFieldValue(DataOutput out, Object value,
+			FieldInfo field, FastArrayList objectStack) throws IOException;
+
+	/**
+	 * Reads value of single field and sets it on given object.
+	 */
+	protected abstract void readField(DataInput in, Object obj,
+			FieldInfo field, FastArrayList objectStack) throws IOException,
+			ClassNotFoundException;
+
 }
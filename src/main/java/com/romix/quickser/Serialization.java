@@ -17,9 +17,14 @@ package com.romix.quickser;
 
 import java.io.*;
 import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.romix.quickser.SerializationHeader.*;
 
@@ -33,6 +38,16 @@ import static com.romix.quickser.SerializationHeader.*;
  * On unknown types normal java serialization is used
  * <p/>
  * <p/>
+ * Custom encoding for a class can be provided by registering a
+ * {@link Serializer} with {@link #register(Class, Serializer)}.
+ * <p/>
+ * Some objects can be created only after their contents are read: elements
+ * of singleton and immutable collections, value of Optional and comparator
+ * of sorted collections. Such object can not be referenced from these
+ * contents, for example singleton list can not contain itself. Data with
+ * such reference are written, but reading fails with
+ * InvalidObjectException.
+ * <p/>
  * Header byte values bellow 180 are reserved by author for future use. If you
  * want to customize this class, use values over 180, to be compatible with
  * future updates.
@@ -50,6 +65,57 @@ public class Serialization extends SerialClassInfo implements Serializer {
 
 	private static final String UTF8 = "UTF-8";
 
+	/**
+	 * Codecs indexed by runtime class. Starts with built-in codecs, other
+	 * classes are added on first use.
+	 */
+	private final IdentityHashMap<Class, Codec> class2codec = new IdentityHashMap<Class, Codec>(
+			BUILTIN_CODECS);
+
+	/** shorter strings are not added to object stack */
+	static final int TRACKED_STRING_LENGTH = 4;
+
+	/** shorter int and long arrays are not bit packed */
+	static final int BIT_PACKING_MIN_LENGTH = 8;
+
+	/** shorter primitive arrays are not written as runs or sparse */
+	static final int SPARSE_MIN_LENGTH = 16;
+
+	/**
+	 * smaller arrays and collections of numbers are written with header for
+	 * each element
+	 */
+	static final int PACKED_NUMBERS_MIN_SIZE = 8;
+
+	// object stack reused by top level serialize calls
+	private final FastArrayList writeStack = new FastArrayList();
+	private boolean writeStackInUse;
+
+	private boolean referenceTracking = true;
+	private boolean cycleDetection;
+	// objects currently being written, used only to detect cycles when
+	// reference tracking is disabled
+	private IdentityHashMap<Object, Object> path;
+
+	/** flag of setDeduplication, strings are deduplicated */
+	static final int DEDUP_STRINGS = 1;
+	/** flag of setDeduplication, Long, BigDecimal and Date are deduplicated */
+	static final int DEDUP_VALUES = 2;
+
+	private int deduplication;
+	private boolean floatCompression;
+	private long dateEpoch;
+	// values written by current call with their index, null if values are
+	// not deduplicated
+	private HashMap<Object, Integer> dedupWritten;
+	private int dedupWrittenFlags;
+	// values read by current call
+	private FastArrayList dedupRead;
+	private int dedupReadFlags;
+
+	/** serializers registered by user, index in list is written as their id */
+	private final ArrayList<Serializer> customSerializers = new ArrayList<Serializer>();
+
 	Serialization(ArrayList<ClassInfo> info) throws IOException {
 		super(info);
 	}
@@ -60,6 +126,92 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		addClassInfo(new ClassInfo(Object.class.getName(), new FieldInfo[] {}, false,false));
 	}
 
+	/**
+	 * Registers custom serializer for given class. Objects of exactly this
+	 * class are written by the serializer instead of the default handling,
+	 * only with short header which identifies the serializer.
+	 * <p/>
+	 * Serializers are identified by registration order, so instances which
+	 * write and read the data must register the same serializers in the same
+	 * order. Objects written by the serializer are independent from the rest
+	 * of object graph, shared references to them are preserved, but references
+	 * from them are not.
+	 * 
+	 * @param clazz
+	 *            class of objects to write with the serializer, subclasses
+	 *            are not affected
+	 * @param serializer
+	 *            serializer to use
+	 */
+	public <T> void register(Class<T> clazz, Serializer<T> serializer) {
+		if (class2codec.get(clazz) instanceof CustomCodec)
+			throw new IllegalArgumentException(
+					"Serializer is already registered for " + clazz.getName());
+		CustomCodec codec = new CustomCodec(customSerializers.size(),
+				serializer);
+		customSerializers.add(serializer);
+		class2codec.put(clazz, codec);
+		// fields of this type may be already written without header
+		resetFinalClassIds();
+	}
+
+	/**
+	 * Enables or disables reference tracking, it is enabled by default. If
+	 * disabled, shared objects are written several times and cyclic graphs
+	 * can not be written, but writing and reading trees is faster. Reader
+	 * does not have to be configured, data are marked in stream.
+	 * 
+	 * @param cycleDetection
+	 *            if true and tracking is disabled, cyclic reference fails
+	 *            with IllegalStateException instead of StackOverflowError
+	 */
+	public void setReferenceTracking(boolean referenceTracking,
+			boolean cycleDetection) {
+		this.referenceTracking = referenceTracking;
+		this.cycleDetection = cycleDetection;
+	}
+
+	public void setReferenceTracking(boolean referenceTracking) {
+		setReferenceTracking(referenceTracking, false);
+	}
+
+	/**
+	 * Enables deduplication of equal values, it is disabled by default.
+	 * Value equal to value written before is replaced by short reference, and
+	 * reader returns the same instance for every occurrence. Reader does not
+	 * have to be configured, data are marked in stream.
+	 * 
+	 * @param strings
+	 *            deduplicate strings
+	 * @param values
+	 *            deduplicate Long, BigDecimal and Date. Equal dates become
+	 *            the same instance after reading.
+	 */
+	public void setDeduplication(boolean strings, boolean values) {
+		deduplication = (strings ? DEDUP_STRINGS : 0)
+				| (values ? DEDUP_VALUES : 0);
+	}
+
+	/**
+	 * Enables XOR compression of double and float arrays, it is disabled by
+	 * default. Each element is written as XOR with previous one, so series of
+	 * equal or close values take few bits per element. Array is written in
+	 * full if compression does not make it smaller. Reader does not have to
+	 * be configured.
+	 */
+	public void setFloatCompression(boolean floatCompression) {
+		this.floatCompression = floatCompression;
+	}
+
+	/**
+	 * Sets time in milliseconds which dates are written relative to, default
+	 * is 1970-01-01 UTC. Dates close to epoch take less space. Writer and
+	 * reader must use the same epoch.
+	 */
+	public void setDateEpoch(long dateEpoch) {
+		this.dateEpoch = dateEpoch;
+	}
+
 	/**
 	 * Serialize the object into a byte array.
 	 */
@@ -83,14 +235,66 @@ public class Serialization extends SerialClassInfo implements Serializer {
 
 	public void serialize(final DataOutput out, final Object obj)
 			throws IOException {
-		serialize(out, obj, null);
+		if (deduplication == 0) {
+			serializeGraph(out, obj);
+			return;
+		}
+
+		out.write(DEDUP);
+		out.write(deduplication);
+		HashMap<Object, Integer> oldWritten = dedupWritten;
+		int oldFlags = dedupWrittenFlags;
+		dedupWritten = new HashMap<Object, Integer>();
+		dedupWrittenFlags = deduplication;
+		try {
+			serializeGraph(out, obj);
+		} finally {
+			dedupWritten = oldWritten;
+			dedupWrittenFlags = oldFlags;
+		}
+	}
+
+	private void serializeGraph(final DataOutput out, final Object obj)
+			throws IOException {
+		if (referenceTracking) {
+			serialize(out, obj, null);
+			return;
+		}
+
+		out.write(TREE);
+		if (!cycleDetection) {
+			serialize(out, obj, NO_REFERENCES);
+			return;
+		}
+		IdentityHashMap<Object, Object> oldPath = path;
+		path = new IdentityHashMap<Object, Object>();
+		try {
+			serialize(out, obj, NO_REFERENCES);
+		} finally {
+			path = oldPath;
+		}
 	}
 
 	public void serialize(final DataOutput out, final Object obj,
 			FastArrayList objectStack) throws IOException {
 
+		if (obj == null) {
+			out.write(NULL);
+			return;
+		}
+
+		if (dedupWritten != null && isDeduplicated(obj, dedupWrittenFlags)) {
+			Integer index = dedupWritten.get(obj);
+			if (index != null) {
+				out.write(VALUE_REF);
+				LongPacker.packInt(out, index);
+				return;
+			}
+			dedupWritten.put(obj, dedupWritten.size());
+		}
+
 		/** try to find object on stack if it exists */
-		if (objectStack != null) {
+		if (objectStack != null && objectStack.tracking && isTracked(obj)) {
 			int indexInObjectStack = objectStack.identityIndexOf(obj);
 			if (indexInObjectStack != -1) {
 				// object was already serialized, just write reference to it and
@@ -103,429 +307,1218 @@ public class Serialization extends SerialClassInfo implements Serializer {
 			objectStack.add(obj);
 		}
 
-		final Class clazz = obj != null ? obj.getClass() : null;
-
-		/** first try to serialize object without initializing object stack */
-		if (obj == null) {
-			out.write(NULL);
-			return;
-		} else if (clazz == Boolean.class) {
-			if (((Boolean) obj).booleanValue())
-				out.write(BOOLEAN_TRUE);
-			else
-				out.write(BOOLEAN_FALSE);
-			return;
-		} else if (clazz == Integer.class) {
-			final int val = (Integer) obj;
-			writeInteger(out, val);
-			return;
-		} else if (clazz == Double.class) {
-			double v = (Double) obj;
-			if (v == -1d)
-				out.write(DOUBLE_MINUS_1);
-			else if (v == 0d)
-				out.write(DOUBLE_0);
-			else if (v == 1d)
-				out.write(DOUBLE_1);
-			else if (v >= 0 && v <= 255 && (int) v == v) {
-				out.write(DOUBLE_255);
-				out.write((int) v);
-			} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE
-					&& (short) v == v) {
-				out.write(DOUBLE_SHORT);
-				out.writeShort((int) v);
-			} else {
-				out.write(DOUBLE_FULL);
-				out.writeDouble(v);
-			}
-			return;
-		} else if (clazz == Float.class) {
-			float v = (Float) obj;
-			if (v == -1f)
-				out.write(FLOAT_MINUS_1);
-			else if (v == 0f)
-				out.write(FLOAT_0);
-			else if (v == 1f)
-				out.write(FLOAT_1);
-			else if (v >= 0 && v <= 255 && (int) v == v) {
-				out.write(FLOAT_255);
-				out.write((int) v);
-			} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE
-					&& (short) v == v) {
-				out.write(FLOAT_SHORT);
-				out.writeShort((int) v);
+		final Codec codec = codecFor(obj.getClass());
 
-			} else {
-				out.write(FLOAT_FULL);
-				out.writeFloat(v);
-			}
-			return;
-		} else if (clazz == BigInteger.class) {
-			out.write(BIGINTEGER);
-			byte[] buf = ((BigInteger) obj).toByteArray();
-			serializeByteArrayInt(out, buf);
-			return;
-		} else if (clazz == BigDecimal.class) {
-			out.write(BIGDECIMAL);
-			BigDecimal d = (BigDecimal) obj;
-			serializeByteArrayInt(out, d.unscaledValue().toByteArray());
-			LongPacker.packInt(out, d.scale());
-			return;
-		} else if (clazz == Long.class) {
-			final long val = (Long) obj;
-			writeLong(out, val);
-			return;
-		} else if (clazz == Short.class) {
-			short val = (Short) obj;
-			if (val == -1)
-				out.write(SHORT_MINUS_1);
-			else if (val == 0)
-				out.write(SHORT_0);
-			else if (val == 1)
-				out.write(SHORT_1);
-			else if (val > 0 && val < 255) {
-				out.write(SHORT_255);
-				out.write(val);
-			} else {
-				out.write(SHORT_FULL);
-				out.writeShort(val);
-			}
-			return;
-		} else if (clazz == Byte.class) {
-			byte val = (Byte) obj;
-			if (val == -1)
-				out.write(BYTE_MINUS_1);
-			else if (val == 0)
-				out.write(BYTE_0);
-			else if (val == 1)
-				out.write(BYTE_1);
-			else {
-				out.write(SHORT_FULL);
-				out.writeByte(val);
+		/**
+		 * some codecs need object stack, so initialize it if not alredy
+		 * initialized
+		 */
+		if (codec.needsObjectStack && objectStack == null) {
+			if (writeStackInUse) {
+				// nested call from custom serializer or Externalizable
+				objectStack = new FastArrayList();
+				objectStack.add(obj);
+				codec.write(this, out, obj, objectStack);
+				return;
 			}
-			return;
-		} else if (clazz == Character.class) {
-			out.write(CHAR);
-			out.writeChar((Character) obj);
-			return;
-		} else if (clazz == String.class) {
-			String s = (String) obj;
-			if (s.length() == 0) {
-				out.write(STRING_EMPTY);
-			} else {
-				out.write(STRING);
-				serializeString(out, s);
+			writeStackInUse = true;
+			try {
+				writeStack.add(obj);
+				codec.write(this, out, obj, writeStack);
+			} finally {
+				writeStack.clear();
+				writeStackInUse = false;
 			}
 			return;
-		} else if (obj instanceof Class) {
-			out.write(CLASS);
-			serialize(out, ((Class) obj).getName());
-			return;
-		} else if (obj instanceof int[]) {
-			writeIntArray(out, (int[]) obj);
-			return;
-		} else if (obj instanceof long[]) {
-			writeLongArray(out, (long[]) obj);
-			return;
-		} else if (obj instanceof short[]) {
-			out.write(SHORT_ARRAY);
-			short[] a = (short[]) obj;
-			LongPacker.packInt(out, a.length);
-			for (short s : a)
-				out.writeShort(s);
-			return;
-		} else if (obj instanceof boolean[]) {
-			out.write(BOOLEAN_ARRAY);
-			boolean[] a = (boolean[]) obj;
-			LongPacker.packInt(out, a.length);
-			for (boolean s : a)
-				out.writeBoolean(s); // TODO pack 8 booleans to single byte
-			return;
-		} else if (obj instanceof double[]) {
-			out.write(DOUBLE_ARRAY);
-			double[] a = (double[]) obj;
-			LongPacker.packInt(out, a.length);
-			for (double s : a)
-				out.writeDouble(s);
-			return;
-		} else if (obj instanceof float[]) {
-			out.write(FLOAT_ARRAY);
-			float[] a = (float[]) obj;
-			LongPacker.packInt(out, a.length);
-			for (float s : a)
-				out.writeFloat(s);
-			return;
-		} else if (obj instanceof char[]) {
-			out.write(CHAR_ARRAY);
-			char[] a = (char[]) obj;
-			LongPacker.packInt(out, a.length);
-			for (char s : a)
-				out.writeChar(s);
-			return;
-		} else if (obj instanceof byte[]) {
-			byte[] b = (byte[]) obj;
-			out.write(ARRAY_BYTE_INT);
-			serializeByteArrayInt(out, b);
-			return;
-		} else if (clazz == Date.class) {
-			out.write(DATE);
-			out.writeLong(((Date) obj).getTime());
-			return;
 		}
 
-		/**
-		 * classes bellow need object stack, so initialize it if not alredy
-		 * initialized
-		 */
-		if (objectStack == null) {
-			objectStack = new FastArrayList();
-			objectStack.add(obj);
+		if (path != null && codec.needsObjectStack) {
+			if (path.put(obj, obj) != null)
+				throw new IllegalStateException(
+						"Cyclic reference with reference tracking disabled: "
+								+ obj.getClass().getName());
+			codec.write(this, out, obj, objectStack);
+			path.remove(obj);
+			return;
 		}
 
-		if (obj instanceof Object[]) {
-			Object[] b = (Object[]) obj;
-			boolean packableLongs = b.length <= 255;
-			if (packableLongs) {
-				// check if it contains packable longs
-				for (Object o : b) {
-					if (o != null
-							&& (o.getClass() != Long.class || (((Long) o)
-									.longValue() < 0 && ((Long) o).longValue() != Long.MAX_VALUE))) {
-						packableLongs = false;
-						break;
-					}
-				}
-			}
-
-			if (packableLongs) {
-				// packable Longs is special case, it is often used in JDBM to
-				// reference fields
-				out.write(ARRAY_OBJECT_PACKED_LONG);
-				out.write(b.length);
-				for (Object o : b) {
-					if (o == null)
-						LongPacker.packLong(out, 0);
-					else
-						LongPacker.packLong(out, ((Long) o).longValue() + 1);
-				}
+		codec.write(this, out, obj, objectStack);
+	}
 
-			} else {
-				out.write(ARRAY_OBJECT);
-				LongPacker.packInt(out, b.length);
+	/**
+	 * Returns true if object is added to object stack, so it can be
+	 * referenced later. Boxed numbers, enums, short strings and other small
+	 * immutable values (UUID, URI, Locale and java.time values) are cheaper
+	 * to write again, so they do not take space in object stack.
+	 * Reader uses the same rule on deserialized values, so stack indexes on
+	 * both sides match.
+	 */
+	static boolean isTracked(Object obj) {
+		if (obj == null)
+			return false;
+		final Class c = obj.getClass();
+		if (c == String.class)
+			return ((String) obj).length() >= TRACKED_STRING_LENGTH;
+		return c != Integer.class && c != Long.class && c != Boolean.class
+				&& c != Double.class && c != Float.class && c != Short.class
+				&& c != Byte.class && c != Character.class
+				&& c != BigInteger.class && c != BigDecimal.class
+				&& !(obj instanceof Enum) && c != UUID.class
+				&& c != java.net.URI.class && c != Locale.class
+				&& !isJavaTimeValue(c);
+	}
 
-				// Write class id for components
-				Class<?> componentType = obj.getClass().getComponentType();
-				int classId = registerClass(componentType);
-				// write class header
-				LongPacker.packInt(out, classId);
+	/** immutable java.time classes, empty before Java 8 */
+	private static final Class[] JAVA_TIME_VALUES = javaTimeValues();
 
-				for (Object o : b)
-					serialize(out, o, objectStack);
-
-			}
-
-		} else if (clazz == ArrayList.class) {
-			ArrayList l = (ArrayList) obj;
-			boolean packableLongs = l.size() < 255;
-			if (packableLongs) {
-				// packable Longs is special case, it is often used in JDBM to
-				// reference fields
-				for (Object o : l) {
-					if (o != null
-							&& (o.getClass() != Long.class || (((Long) o)
-									.longValue() < 0 && ((Long) o).longValue() != Long.MAX_VALUE))) {
-						packableLongs = false;
-						break;
-					}
-				}
-			}
-			if (packableLongs) {
-				out.write(ARRAYLIST_PACKED_LONG);
-				out.write(l.size());
-				for (Object o : l) {
-					if (o == null)
-						LongPacker.packLong(out, 0);
-					else
-						LongPacker.packLong(out, ((Long) o).longValue() + 1);
-				}
-			} else {
-				serializeCollection(ARRAYLIST, out, obj, objectStack);
-			}
-
-		} else if (clazz == java.util.LinkedList.class) {
-			serializeCollection(LINKEDLIST, out, obj, objectStack);
-		} else if (clazz == Vector.class) {
-			serializeCollection(VECTOR, out, obj, objectStack);
-		} else if (clazz == TreeSet.class) {
-			TreeSet l = (TreeSet) obj;
-			out.write(TREESET);
-			LongPacker.packInt(out, l.size());
-			serialize(out, l.comparator(), objectStack);
-			for (Object o : l)
-				serialize(out, o, objectStack);
-		} else if (clazz == HashSet.class) {
-			serializeCollection(HASHSET, out, obj, objectStack);
-		} else if (clazz == LinkedHashSet.class) {
-			serializeCollection(LINKEDHASHSET, out, obj, objectStack);
-		} else if (clazz == TreeMap.class) {
-			TreeMap l = (TreeMap) obj;
-			out.write(TREEMAP);
-			LongPacker.packInt(out, l.size());
-			serialize(out, l.comparator(), objectStack);
-			for (Object o : l.keySet()) {
-				serialize(out, o, objectStack);
-				serialize(out, l.get(o), objectStack);
-			}
-		} else if (clazz == HashMap.class) {
-			serializeMap(HASHMAP, out, obj, objectStack);
-		} else if (clazz == IdentityHashMap.class) {
-			serializeMap(IDENTITYHASHMAP, out, obj, objectStack);
-		} else if (clazz == LinkedHashMap.class) {
-			serializeMap(LINKEDHASHMAP, out, obj, objectStack);
-		} else if (clazz == Hashtable.class) {
-			serializeMap(HASHTABLE, out, obj, objectStack);
-		} else if (clazz == Properties.class) {
-			serializeMap(PROPERTIES, out, obj, objectStack);
-		} else {
-			out.write(NORMAL);
-			writeObject(out, obj, objectStack);
+	private static Class[] javaTimeValues() {
+		try {
+			Class.forName("java.time.Instant");
+			return Java8Codecs.VALUE_CLASSES;
+		} catch (ClassNotFoundException e) {
+			return new Class[0];
 		}
-
 	}
 
-	static void serializeString(DataOutput out, String obj) throws IOException {
-		final int len = obj.length();
-		LongPacker.packInt(out, len);
-		for (int i = 0; i < len; i++) {
-			int c = (int) obj.charAt(i); // TODO investigate if c could be
-											// negative here
-			LongPacker.packInt(out, c);
+	private static boolean isJavaTimeValue(Class c) {
+		for (Class v : JAVA_TIME_VALUES) {
+			if (c == v)
+				return true;
 		}
-
+		return false;
 	}
 
-	private void serializeMap(int header, DataOutput out, Object obj,
-			FastArrayList objectStack) throws IOException {
-		Map l = (Map) obj;
-		out.write(header);
-		LongPacker.packInt(out, l.size());
-		for (Object o : l.keySet()) {
-			serialize(out, o, objectStack);
-			serialize(out, l.get(o), objectStack);
+	/**
+	 * Returns true if value is replaced by reference to equal value written
+	 * before. Reader uses the same rule on deserialized values.
+	 */
+	static boolean isDeduplicated(Object obj, int flags) {
+		final Class c = obj.getClass();
+		if (c == String.class)
+			return (flags & DEDUP_STRINGS) != 0 && ((String) obj).length() != 0;
+		if ((flags & DEDUP_VALUES) == 0)
+			return false;
+		if (c == Long.class) {
+			// small values have single byte header
+			long v = (Long) obj;
+			return v < -1 || v > 255;
 		}
+		return c == BigDecimal.class || c == Date.class;
 	}
 
-	private void serializeCollection(int header, DataOutput out, Object obj,
-			FastArrayList objectStack) throws IOException {
-		Collection l = (Collection) obj;
-		out.write(header);
-		LongPacker.packInt(out, l.size());
-
-		for (Object o : l)
-			serialize(out, o, objectStack);
+	/**
+	 * Returns codec for given runtime class. Classes without builtin codec
+	 * are resolved on first use.
+	 */
+	private Codec codecFor(Class clazz) throws IOException {
+		Codec codec = class2codec.get(clazz);
+		if (codec == null) {
+			// all primitive arrays are already in the table
+			if (clazz.isArray())
+				codec = OBJECT_ARRAY_CODEC;
+			else if (EnumSet.class.isAssignableFrom(clazz))
+				// implementations of EnumSet are not public
+				codec = ENUM_SET_CODEC;
+			else if (Enum.class.isAssignableFrom(clazz))
+				// constant with body is subclass of enum class
+				codec = new EnumCodec(registerClass(clazz.isEnum() ? clazz
+						: clazz.getSuperclass()));
+			else if (Collection.class.isAssignableFrom(clazz)
+					|| Map.class.isAssignableFrom(clazz))
+				codec = collectionCodec(clazz);
+			else
+				codec = new NormalCodec(registerClass(clazz));
+			class2codec.put(clazz, codec);
+		}
+		return codec;
+	}
 
+	/**
+	 * Returns codec for collection or map class without builtin codec.
+	 * Collections sorted by comparator are recreated by constructor which
+	 * takes the comparator. Subclasses of JDK collections which can not be
+	 * recreated this way, because they declare own fields or miss the
+	 * constructor, can not be written, since their elements are kept in
+	 * transient fields.
+	 */
+	private Codec collectionCodec(Class clazz) throws IOException {
+		final boolean map = Map.class.isAssignableFrom(clazz);
+		java.lang.reflect.Method comparator;
+		try {
+			comparator = clazz.getMethod("comparator");
+		} catch (NoSuchMethodException e) {
+			// collection is not sorted
+			if (hasCollectionProtocol(clazz))
+				return new GenericCodec(map ? MAP : COLLECTION,
+						registerClass(clazz), null, hasCollectionProtocol(
+								clazz, int.class));
+			// JDK classes are written field by field as before
+			if (clazz.getName().startsWith("java.")
+					|| !extendsJdkCollection(clazz))
+				return new NormalCodec(registerClass(clazz));
+			throw new NotSerializableException(clazz.getName()
+					+ " has own fields or no no-arg constructor");
+		}
+		if (hasCollectionProtocol(clazz, Comparator.class)) {
+			if (!Modifier.isPublic(comparator.getDeclaringClass()
+					.getModifiers()))
+				comparator.setAccessible(true);
+			return new GenericCodec(map ? SORTED_MAP : SORTED_COLLECTION,
+					registerClass(clazz), comparator, false);
+		}
+		if (!extendsJdkCollection(clazz))
+			return new NormalCodec(registerClass(clazz));
+		throw new NotSerializableException(clazz.getName()
+				+ " has no constructor with comparator");
 	}
 
-	private void serializeByteArrayInt(DataOutput out, byte[] b)
-			throws IOException {
-		LongPacker.packInt(out, b.length);
-		out.write(b);
+	/**
+	 * Returns true if class extends JDK collection, which keeps its elements
+	 * in transient fields. Classes which implement collection on their own,
+	 * or write themselves as Externalizable, keep their state in fields.
+	 */
+	static boolean extendsJdkCollection(Class clazz) {
+		if (Externalizable.class.isAssignableFrom(clazz))
+			return false;
+		Class c = clazz;
+		while (!c.getName().startsWith("java."))
+			c = c.getSuperclass();
+		return c != Object.class && !c.getName().startsWith("java.util.Abstract");
 	}
 
-	private void writeLongArray(DataOutput da, long[] obj) throws IOException {
-		long max = Long.MIN_VALUE;
-		long min = Long.MAX_VALUE;
-		for (long i : obj) {
-			max = Math.max(max, i);
-			min = Math.min(min, i);
-			if(min < Integer.MIN_VALUE || max > Integer.MAX_VALUE)
-				break;
+	/**
+	 * Returns true if collection or map can be written as class id and
+	 * elements, and recreated by constructor with given parameters. Classes
+	 * which add fields to JDK class they extend are written field by field.
+	 */
+	static boolean hasCollectionProtocol(Class clazz, Class... parameterTypes) {
+		if (Externalizable.class.isAssignableFrom(clazz))
+			return false;
+		final java.lang.reflect.Constructor constructor;
+		try {
+			constructor = clazz.getDeclaredConstructor(parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return false;
 		}
-
-		if (0 <= min && max <= 255) {
-			da.write(ARRAY_LONG_B);
-			LongPacker.packInt(da, obj.length);
-			for (long l : obj)
-				da.write((int) l);
-		} else if (0 <= min && max <= Long.MAX_VALUE) {
-			da.write(ARRAY_LONG_PACKED);
-			LongPacker.packInt(da, obj.length);
-			for (long l : obj)
-				LongPacker.packLong(da, l);
-		} else if (Short.MIN_VALUE <= min && max <= Short.MAX_VALUE) {
-			da.write(ARRAY_LONG_S);
-			LongPacker.packInt(da, obj.length);
-			for (long l : obj)
-				da.writeShort((short) l);
-		} else if (Integer.MIN_VALUE <= min && max <= Integer.MAX_VALUE) {
-			da.write(ARRAY_LONG_I);
-			LongPacker.packInt(da, obj.length);
-			for (long l : obj)
-				da.writeInt((int) l);
-		} else {
-			da.write(ARRAY_LONG_L);
-			LongPacker.packInt(da, obj.length);
-			for (long l : obj)
-				da.writeLong(l);
+		if (clazz.getName().startsWith("java."))
+			// JDK internals are not accessible
+			return Modifier.isPublic(clazz.getModifiers())
+					&& Modifier.isPublic(constructor.getModifiers());
+		for (Class c = clazz; !c.getName().startsWith("java."); c = c
+				.getSuperclass()) {
+			for (java.lang.reflect.Field f : c.getDeclaredFields()) {
+				if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0)
+					return false;
+			}
 		}
-
+		return true;
 	}
 
-	private void writeIntArray(DataOutput da, int[] obj) throws IOException {
-		int max = Integer.MIN_VALUE;
-		int min = Integer.MAX_VALUE;
-		for (int i : obj) {
-			max = Math.max(max, i);
-			min = Math.min(min, i);
-			if(min < Integer.MIN_VALUE || max > Integer.MAX_VALUE)
-				break;
+	private void writeDouble(DataOutput out, double v) throws IOException {
+		if (v == -1d)
+			out.write(DOUBLE_MINUS_1);
+		else if (Double.doubleToRawLongBits(v) == 0)
+			out.write(DOUBLE_0);
+		else if (v == 1d)
+			out.write(DOUBLE_1);
+		else if (v > 0 && v <= 255 && (int) v == v) {
+			out.write(DOUBLE_255);
+			out.write((int) v);
+		} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE
+				&& (short) v == v && v != 0) {
+			out.write(DOUBLE_SHORT);
+			out.writeShort((int) v);
+		} else {
+			// also negative zero
+			out.write(DOUBLE_FULL);
+			out.writeDouble(v);
 		}
+	}
 
-		boolean fitsInByte = 0 <= min && max <= 255;
-		boolean fitsInShort = Short.MIN_VALUE >= min && max <= Short.MAX_VALUE;
+	private void writeFloat(DataOutput out, float v) throws IOException {
+		if (v == -1f)
+			out.write(FLOAT_MINUS_1);
+		else if (Float.floatToRawIntBits(v) == 0)
+			out.write(FLOAT_0);
+		else if (v == 1f)
+			out.write(FLOAT_1);
+		else if (v > 0 && v <= 255 && (int) v == v) {
+			out.write(FLOAT_255);
+			out.write((int) v);
+		} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE
+				&& (short) v == v && v != 0) {
+			out.write(FLOAT_SHORT);
+			out.writeShort((int) v);
 
-		if (obj.length <= 255 && fitsInByte) {
-			da.write(ARRAY_INT_B_255);
-			da.write(obj.length);
-			for (int i : obj)
-				da.write(i);
-		} else if (fitsInByte) {
-			da.write(ARRAY_INT_B_INT);
-			LongPacker.packInt(da, obj.length);
-			for (int i : obj)
-				da.write(i);
-		} else if (0 <= min && max <= Integer.MAX_VALUE) {
-			da.write(ARRAY_INT_PACKED);
-			LongPacker.packInt(da, obj.length);
-			for (int l : obj)
-				LongPacker.packInt(da, l);
-		} else if (fitsInShort) {
-			da.write(ARRAY_INT_S);
-			LongPacker.packInt(da, obj.length);
-			for (int i : obj)
-				da.writeShort(i);
 		} else {
-			da.write(ARRAY_INT_I);
-			LongPacker.packInt(da, obj.length);
-			for (int i : obj)
-				da.writeInt(i);
+			// also negative zero
+			out.write(FLOAT_FULL);
+			out.writeFloat(v);
 		}
+	}
 
+	private void writeShort(DataOutput out, short val) throws IOException {
+		if (val == -1)
+			out.write(SHORT_MINUS_1);
+		else if (val == 0)
+			out.write(SHORT_0);
+		else if (val == 1)
+			out.write(SHORT_1);
+		else if (val > 0 && val < 255) {
+			out.write(SHORT_255);
+			out.write(val);
+		} else {
+			out.write(SHORT_FULL);
+			out.writeShort(val);
+		}
 	}
 
-	private void writeInteger(DataOutput da, final int val) throws IOException {
+	private void writeByte(DataOutput out, byte val) throws IOException {
 		if (val == -1)
-			da.write(INTEGER_MINUS_1);
+			out.write(BYTE_MINUS_1);
 		else if (val == 0)
-			da.write(INTEGER_0);
+			out.write(BYTE_0);
 		else if (val == 1)
-			da.write(INTEGER_1);
-		else if (val == 2)
-			da.write(INTEGER_2);
-		else if (val == 3)
-			da.write(INTEGER_3);
-		else if (val == 4)
-			da.write(INTEGER_4);
+			out.write(BYTE_1);
+		else {
+			out.write(BYTE_FULL);
+			out.writeByte(val);
+		}
+	}
+
+	private void writeString(DataOutput out, String s) throws IOException {
+		if (s.length() == 0) {
+			out.write(STRING_EMPTY);
+		} else {
+			final boolean latin1 = isLatin1(s);
+			out.write(latin1 ? STRING_LATIN1 : STRING_UTF8);
+			LongPacker.packInt(out, s.length());
+			writeChars(out, s, latin1);
+		}
+	}
+
+	private void writeObjectArray(DataOutput out, Object[] b,
+			FastArrayList objectStack) throws IOException {
+		if (b.length >= PACKED_NUMBERS_MIN_SIZE) {
+			final List elements = Arrays.asList(b);
+			final char type = numericType(elements);
+			if (type != 0) {
+				out.write(PACKED_NUMBERS);
+				out.write(ARRAY_OBJECT);
+				LongPacker.packInt(out, b.length);
+				LongPacker.packInt(out, registerClass(b.getClass()
+						.getComponentType()));
+				writeNumbers(out, elements, b.length, type);
+				return;
+			}
+		}
+		boolean packableLongs = b.length <= 255;
+		if (packableLongs) {
+			// check if it contains packable longs
+			for (Object o : b) {
+				if (o != null
+						&& (o.getClass() != Long.class || (((Long) o)
+								.longValue() < 0 && ((Long) o).longValue() != Long.MAX_VALUE))) {
+					packableLongs = false;
+					break;
+				}
+			}
+		}
+
+		if (packableLongs) {
+			// packable Longs is special case, it is often used in JDBM to
+			// reference fields
+			out.write(ARRAY_OBJECT_PACKED_LONG);
+			out.write(b.length);
+			for (Object o : b) {
+				if (o == null)
+					LongPacker.packLong(out, 0);
+				else
+					LongPacker.packLong(out, ((Long) o).longValue() + 1);
+			}
+
+		} else {
+			// Write class id for components
+			Class<?> componentType = b.getClass().getComponentType();
+			final int type = homogeneousType(Arrays.asList(b), componentType);
+			if (type >= 0) {
+				out.write(HOMOGENEOUS);
+				out.write(ARRAY_OBJECT);
+				LongPacker.packInt(out, b.length);
+				LongPacker.packInt(out, registerClass(componentType));
+				LongPacker.packInt(out, type);
+				for (Object o : b)
+					writeElement(out, o, type, objectStack);
+				return;
+			}
+			out.write(ARRAY_OBJECT);
+			LongPacker.packInt(out, b.length);
+
+			int classId = registerClass(componentType);
+			// write class header
+			LongPacker.packInt(out, classId);
+
+			for (Object o : b)
+				serialize(out, o, objectStack);
+
+		}
+	}
+
+	/**
+	 * Returns type of elements, if all of them are strings or objects of
+	 * single class written by writeObject, so they can be written without
+	 * headers. Type is zero for strings, or class id plus one. Otherwise
+	 * returns -1.
+	 * 
+	 * @param componentType
+	 *            component type of array, or null
+	 */
+	private int homogeneousType(Iterable elements, Class componentType)
+			throws IOException {
+		Class clazz = null;
+		if (componentType != null && !componentType.isArray()
+				&& Modifier.isFinal(componentType.getModifiers())) {
+			// all elements are of component type
+			clazz = componentType;
+		} else {
+			int count = 0;
+			for (Object o : elements) {
+				if (o == null)
+					continue;
+				if (clazz == null)
+					clazz = o.getClass();
+				else if (o.getClass() != clazz)
+					return -1;
+				count++;
+			}
+			// element type of single element takes more space than header
+			if (count < 2)
+				return -1;
+		}
+		if (clazz == String.class)
+			return 0;
+		final Codec codec = codecFor(clazz);
+		if (codec instanceof NormalCodec)
+			return ((NormalCodec) codec).classId + 1;
+		return -1;
+	}
+
+	/**
+	 * Returns type of primitive array, if all elements which are not null
+	 * are boxed numbers of single type. Otherwise returns zero.
+	 */
+	private static char numericType(Iterable elements) {
+		Class clazz = null;
+		for (Object o : elements) {
+			if (o == null)
+				continue;
+			if (clazz == null)
+				clazz = o.getClass();
+			else if (o.getClass() != clazz)
+				return 0;
+		}
+		if (clazz == Integer.class)
+			return 'I';
+		if (clazz == Long.class)
+			return 'J';
+		if (clazz == Double.class)
+			return 'D';
+		if (clazz == Float.class)
+			return 'F';
+		if (clazz == Short.class)
+			return 'S';
+		if (clazz == Byte.class)
+			return 'B';
+		return 0;
+	}
+
+	/**
+	 * Writes boxed numbers as bitmap of nulls and primitive array of other
+	 * elements, which is compressed the same way as other primitive arrays.
+	 * Boxed numbers are not added to object stack, so writing them all at
+	 * once keeps stack on both sides in sync.
+	 */
+	private void writeNumbers(DataOutput out, Iterable elements, int size,
+			char type) throws IOException {
+		out.write(type);
+		final byte[] nulls = new byte[(size + 7) >>> 3];
+		int nullCount = 0;
+		int i = 0;
+		for (Object o : elements) {
+			if (o == null) {
+				nulls[i >>> 3] |= 1 << (i & 7);
+				nullCount++;
+			}
+			i++;
+		}
+		LongPacker.packInt(out, nullCount);
+		if (nullCount > 0)
+			out.write(nulls);
+
+		final int length = size - nullCount;
+		final Object values;
+		switch (type) {
+		case 'I':
+			values = new int[length];
+			break;
+		case 'J':
+			values = new long[length];
+			break;
+		case 'D':
+			values = new double[length];
+			break;
+		case 'F':
+			values = new float[length];
+			break;
+		case 'S':
+			values = new short[length];
+			break;
+		default:
+			values = new byte[length];
+		}
+		i = 0;
+		for (Object o : elements) {
+			if (o == null)
+				continue;
+			switch (type) {
+			case 'I':
+				((int[]) values)[i] = (Integer) o;
+				break;
+			case 'J':
+				((long[]) values)[i] = (Long) o;
+				break;
+			case 'D':
+				((double[]) values)[i] = (Double) o;
+				break;
+			case 'F':
+				((float[]) values)[i] = (Float) o;
+				break;
+			case 'S':
+				((short[]) values)[i] = (Short) o;
+				break;
+			default:
+				((byte[]) values)[i] = (Byte) o;
+			}
+			i++;
+		}
+		// array is temporary, so it is not added to object stack
+		codecFor(values.getClass()).write(this, out, values, null);
+	}
+
+	/**
+	 * Reads numbers written by writeNumbers into given array
+	 */
+	private void readNumbers(DataInput in, Object[] ret) throws IOException,
+			ClassNotFoundException {
+		final int type = in.readUnsignedByte();
+		final int nullCount = LongPacker.unpackInt(in);
+		byte[] nulls = null;
+		if (nullCount > 0) {
+			nulls = new byte[(ret.length + 7) >>> 3];
+			in.readFully(nulls);
+		}
+		final Object values = deserialize(in, null);
+		for (int i = 0, j = 0; i < ret.length; i++) {
+			if (nulls != null && (nulls[i >>> 3] & (1 << (i & 7))) != 0)
+				continue;
+			switch (type) {
+			case 'I':
+				ret[i] = ((int[]) values)[j++];
+				break;
+			case 'J':
+				ret[i] = ((long[]) values)[j++];
+				break;
+			case 'D':
+				ret[i] = ((double[]) values)[j++];
+				break;
+			case 'F':
+				ret[i] = ((float[]) values)[j++];
+				break;
+			case 'S':
+				ret[i] = ((short[]) values)[j++];
+				break;
+			case 'B':
+				ret[i] = ((byte[]) values)[j++];
+				break;
+			default:
+				throw new InternalError("Unknown type of packed numbers: "
+						+ type);
+			}
+		}
+	}
+
+	private void writeElement(DataOutput out, Object o, int type,
+			FastArrayList objectStack) throws IOException {
+		if (type == 0)
+			writeStringField(out, (String) o, objectStack);
+		else
+			writeFinalField(out, o, type - 1, objectStack);
+	}
+
+	private Object readElement(DataInput in, int type,
+			FastArrayList objectStack) throws IOException {
+		if (type == 0)
+			return readStringField(in, objectStack);
+		return readFinalField(in, type - 1, objectStack);
+	}
+
+	private void writeArrayList(DataOutput out, ArrayList l,
+			FastArrayList objectStack) throws IOException {
+		// bigger lists of numbers are written by serializeCollection as
+		// packed numbers
+		boolean packableLongs = l.size() < PACKED_NUMBERS_MIN_SIZE;
+		if (packableLongs) {
+			// packable Longs is special case, it is often used in JDBM to
+			// reference fields
+			for (Object o : l) {
+				if (o != null
+						&& (o.getClass() != Long.class || (((Long) o)
+								.longValue() < 0 && ((Long) o).longValue() != Long.MAX_VALUE))) {
+					packableLongs = false;
+					break;
+				}
+			}
+		}
+		if (packableLongs) {
+			out.write(ARRAYLIST_PACKED_LONG);
+			out.write(l.size());
+			for (Object o : l) {
+				if (o == null)
+					LongPacker.packLong(out, 0);
+				else
+					LongPacker.packLong(out, ((Long) o).longValue() + 1);
+			}
+		} else {
+			serializeCollection(ARRAYLIST, out, l, objectStack);
+		}
+	}
+
+	private void writeTreeSet(DataOutput out, TreeSet l,
+			FastArrayList objectStack) throws IOException {
+		out.write(TREESET);
+		LongPacker.packInt(out, l.size());
+		serialize(out, l.comparator(), objectStack);
+		for (Object o : l)
+			serialize(out, o, objectStack);
+	}
+
+	private void writeTreeMap(DataOutput out, TreeMap l,
+			FastArrayList objectStack) throws IOException {
+		out.write(TREEMAP);
+		LongPacker.packInt(out, l.size());
+		serialize(out, l.comparator(), objectStack);
+		for (Object o : l.keySet()) {
+			serialize(out, o, objectStack);
+			serialize(out, l.get(o), objectStack);
+		}
+	}
+
+	/**
+	 * Writes string without header. Lowest bit of length tells if chars are
+	 * written as Latin-1 or UTF-8.
+	 */
+	static void serializeString(DataOutput out, String obj) throws IOException {
+		final boolean latin1 = isLatin1(obj);
+		LongPacker.packInt(out, (obj.length() << 1) | (latin1 ? 0 : 1));
+		writeChars(out, obj, latin1);
+	}
+
+	static boolean isLatin1(String s) {
+		for (int i = s.length() - 1; i >= 0; i--) {
+			if (s.charAt(i) > 0xFF)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes chars of string, either one byte per char or in UTF-8. Each
+	 * surrogate char is encoded separately in 3 bytes, as in
+	 * DataOutput.writeUTF, so any string can be written.
+	 */
+	static void writeChars(DataOutput out, String s, boolean latin1)
+			throws IOException {
+		if (out instanceof DataInputOutput) {
+			// bulk copy into buffer
+			if (latin1)
+				((DataInputOutput) out).writeLatin1(s);
+			else
+				((DataInputOutput) out).writeUtf8(s);
+			return;
+		}
+		final int len = s.length();
+		for (int i = 0; i < len; i++)
+			writeChar(out, s.charAt(i), latin1);
+	}
+
+	static String readChars(DataInput in, int len, boolean latin1)
+			throws IOException {
+		if (in instanceof DataInputOutput) {
+			if (latin1)
+				return ((DataInputOutput) in).readLatin1(len);
+			else
+				return ((DataInputOutput) in).readUtf8(len);
+		}
+		final char[] chars = new char[len];
+		for (int i = 0; i < len; i++)
+			chars[i] = readChar(in, latin1);
+		return new String(chars);
+	}
+
+	static boolean isLatin1(char[] chars) {
+		for (int i = chars.length - 1; i >= 0; i--) {
+			if (chars[i] > 0xFF)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes chars of array the same way as chars of string
+	 */
+	static void writeChars(DataOutput out, char[] chars, boolean latin1)
+			throws IOException {
+		if (out instanceof DataInputOutput) {
+			if (latin1)
+				((DataInputOutput) out).writeLatin1(chars);
+			else
+				((DataInputOutput) out).writeUtf8(chars);
+			return;
+		}
+		for (char c : chars)
+			writeChar(out, c, latin1);
+	}
+
+	static void readChars(DataInput in, char[] chars, boolean latin1)
+			throws IOException {
+		if (in instanceof DataInputOutput) {
+			if (latin1)
+				((DataInputOutput) in).readLatin1(chars);
+			else
+				((DataInputOutput) in).readUtf8(chars);
+			return;
+		}
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = readChar(in, latin1);
+	}
+
+	private static void writeChar(DataOutput out, int c, boolean latin1)
+			throws IOException {
+		if (latin1 || c < 0x80) {
+			out.write(c);
+		} else if (c < 0x800) {
+			out.write(0xC0 | (c >> 6));
+			out.write(0x80 | (c & 0x3F));
+		} else {
+			out.write(0xE0 | (c >> 12));
+			out.write(0x80 | ((c >> 6) & 0x3F));
+			out.write(0x80 | (c & 0x3F));
+		}
+	}
+
+	private static char readChar(DataInput in, boolean latin1)
+			throws IOException {
+		final int b = in.readUnsignedByte();
+		if (latin1 || b < 0x80)
+			return (char) b;
+		else if (b < 0xE0)
+			return (char) (((b & 0x1F) << 6) | (in.readUnsignedByte() & 0x3F));
+		else
+			return (char) (((b & 0x0F) << 12)
+					| ((in.readUnsignedByte() & 0x3F) << 6) | (in
+					.readUnsignedByte() & 0x3F));
+	}
+
+	/**
+	 * Reads char written by old CHAR and CHAR_ARRAY format, DataInputOutput
+	 * used to write char in 4 bytes
+	 */
+	private static char readOldChar(DataInput in) throws IOException {
+		if (in instanceof DataInputOutput)
+			return (char) in.readInt();
+		return in.readChar();
+	}
+
+	/**
+	 * Writes booleans packed 8 per byte, first element goes to lowest bit
+	 */
+	static void writeBooleans(DataOutput out, boolean[] a) throws IOException {
+		if (out instanceof DataInputOutput) {
+			((DataInputOutput) out).writeBooleans(a);
+			return;
+		}
+		for (int i = 0; i < a.length; i += 8) {
+			int b = 0;
+			final int end = Math.min(a.length, i + 8);
+			for (int j = i; j < end; j++)
+				if (a[j])
+					b |= 1 << (j - i);
+			out.write(b);
+		}
+	}
+
+	static void readBooleans(DataInput in, boolean[] a) throws IOException {
+		if (in instanceof DataInputOutput) {
+			((DataInputOutput) in).readBooleans(a);
+			return;
+		}
+		for (int i = 0; i < a.length; i += 8) {
+			final int b = in.readUnsignedByte();
+			final int end = Math.min(a.length, i + 8);
+			for (int j = i; j < end; j++)
+				a[j] = (b & (1 << (j - i))) != 0;
+		}
+	}
+
+	private void serializeMap(int header, DataOutput out, Object obj,
+			FastArrayList objectStack) throws IOException {
+		out.write(header);
+		writeEntries(out, (Map) obj, objectStack);
+	}
+
+	/** writes size of map followed by keys and values */
+	private void writeEntries(DataOutput out, Map<?, ?> l,
+			FastArrayList objectStack) throws IOException {
+		LongPacker.packInt(out, l.size());
+		for (Map.Entry e : l.entrySet()) {
+			serialize(out, e.getKey(), objectStack);
+			serialize(out, e.getValue(), objectStack);
+		}
+	}
+
+	private void serializeCollection(int header, DataOutput out, Object obj,
+			FastArrayList objectStack) throws IOException {
+		Collection l = (Collection) obj;
+		if (l.size() >= PACKED_NUMBERS_MIN_SIZE
+				&& (header == ARRAYLIST || header == LINKEDLIST
+						|| header == VECTOR || header == HASHSET || header == LINKEDHASHSET)) {
+			final char type = numericType(l);
+			if (type != 0) {
+				out.write(PACKED_NUMBERS);
+				out.write(header);
+				LongPacker.packInt(out, l.size());
+				writeNumbers(out, l, l.size(), type);
+				return;
+			}
+		}
+		if (header == ARRAYLIST || header == LINKEDLIST || header == VECTOR) {
+			final int type = homogeneousType(l, null);
+			if (type >= 0) {
+				out.write(HOMOGENEOUS);
+				out.write(header);
+				LongPacker.packInt(out, l.size());
+				LongPacker.packInt(out, type);
+				for (Object o : l)
+					writeElement(out, o, type, objectStack);
+				return;
+			}
+		}
+		out.write(header);
+		writeElements(out, l, objectStack);
+	}
+
+	/** writes size of collection followed by its elements */
+	private void writeElements(DataOutput out, Collection l,
+			FastArrayList objectStack) throws IOException {
+		LongPacker.packInt(out, l.size());
+		for (Object o : l)
+			serialize(out, o, objectStack);
+	}
+
+	private void serializeByteArrayInt(DataOutput out, byte[] b)
+			throws IOException {
+		LongPacker.packInt(out, b.length);
+		out.write(b);
+	}
+
+	private void writeLongArray(DataOutput da, long[] obj) throws IOException {
+		long max = Long.MIN_VALUE;
+		long min = Long.MAX_VALUE;
+		boolean sorted = true;
+		// bitwise or of differences between neighbour elements
+		long deltas = 0;
+		int runs = 0;
+		int nonZero = 0;
+		for (int k = 0; k < obj.length; k++) {
+			final long i = obj[k];
+			max = Math.max(max, i);
+			min = Math.min(min, i);
+			if (i != 0)
+				nonZero++;
+			if (k == 0 || i != obj[k - 1])
+				runs++;
+			if (k > 0) {
+				if (i < obj[k - 1])
+					sorted = false;
+				deltas |= i - obj[k - 1];
+			}
+		}
+
+		if (obj.length >= BIT_PACKING_MIN_LENGTH) {
+			final int forBits = BitPacker.bitWidth(max - min);
+			final int deltaBits = BitPacker.bitWidth(deltas);
+			final long forSize = LongPacker.zigZagSize(min)
+					+ BitPacker.packedSize(obj.length, forBits);
+			final long deltaSize = sorted ? LongPacker.zigZagSize(obj[0])
+					+ BitPacker.packedSize(obj.length - 1, deltaBits)
+					: Long.MAX_VALUE;
+			final long plainSize = elementsSize(obj, min, max);
+			final long packedSize = Math.min(forSize, deltaSize) + 1;
+			if (writeRunsOrSparse(da, obj, 'J', obj.length, runs, nonZero,
+					Math.max(LongPacker.zigZagSize(min),
+							LongPacker.zigZagSize(max)),
+					Math.min(plainSize, packedSize)))
+				return;
+			if (packedSize < plainSize) {
+				final boolean delta = deltaSize < forSize;
+				final long ref = delta ? obj[0] : min;
+				final int bits = delta ? deltaBits : forBits;
+				da.write(delta ? ARRAY_LONG_DELTA : ARRAY_LONG_FOR);
+				LongPacker.packInt(da, obj.length);
+				LongPacker.packLongZigZag(da, ref);
+				da.write(bits);
+				BitPacker.packLongs(da, obj, delta ? 1 : 0, ref, delta, bits);
+				return;
+			}
+		}
+
+		if (0 <= min && max <= 255) {
+			da.write(ARRAY_LONG_B);
+			LongPacker.packInt(da, obj.length);
+			for (long l : obj)
+				da.write((int) l);
+		} else if (0 <= min) {
+			da.write(ARRAY_LONG_PACKED);
+			LongPacker.packInt(da, obj.length);
+			for (long l : obj)
+				LongPacker.packLong(da, l);
+		} else if (zigZagSize(obj) < fixedSize(min, max) * obj.length) {
+			da.write(ARRAY_LONG_PACKED_SIGNED);
+			LongPacker.packInt(da, obj.length);
+			for (long l : obj)
+				LongPacker.packLongZigZag(da, l);
+		} else if (Short.MIN_VALUE <= min && max <= Short.MAX_VALUE) {
+			da.write(ARRAY_LONG_S);
+			LongPacker.packInt(da, obj.length);
+			for (long l : obj)
+				da.writeShort((short) l);
+		} else if (Integer.MIN_VALUE <= min && max <= Integer.MAX_VALUE) {
+			da.write(ARRAY_LONG_I);
+			LongPacker.packInt(da, obj.length);
+			for (long l : obj)
+				da.writeInt((int) l);
+		} else {
+			da.write(ARRAY_LONG_L);
+			LongPacker.packInt(da, obj.length);
+			for (long l : obj)
+				da.writeLong(l);
+		}
+
+	}
+
+	private void writeIntArray(DataOutput da, int[] obj) throws IOException {
+		int max = Integer.MIN_VALUE;
+		int min = Integer.MAX_VALUE;
+		boolean sorted = true;
+		// bitwise or of differences between neighbour elements
+		int deltas = 0;
+		int runs = 0;
+		int nonZero = 0;
+		for (int k = 0; k < obj.length; k++) {
+			final int i = obj[k];
+			max = Math.max(max, i);
+			min = Math.min(min, i);
+			if (i != 0)
+				nonZero++;
+			if (k == 0 || i != obj[k - 1])
+				runs++;
+			if (k > 0) {
+				if (i < obj[k - 1])
+					sorted = false;
+				deltas |= i - obj[k - 1];
+			}
+		}
+
+		if (obj.length >= BIT_PACKING_MIN_LENGTH) {
+			final int forBits = BitPacker.bitWidth((max - min) & 0xFFFFFFFFL);
+			final int deltaBits = BitPacker.bitWidth(deltas & 0xFFFFFFFFL);
+			final long forSize = LongPacker.zigZagSize(min)
+					+ BitPacker.packedSize(obj.length, forBits);
+			final long deltaSize = sorted ? LongPacker.zigZagSize(obj[0])
+					+ BitPacker.packedSize(obj.length - 1, deltaBits)
+					: Long.MAX_VALUE;
+			final long plainSize = elementsSize(obj, min, max);
+			final long packedSize = Math.min(forSize, deltaSize) + 1;
+			if (writeRunsOrSparse(da, obj, 'I', obj.length, runs, nonZero,
+					Math.max(LongPacker.zigZagSize(min),
+							LongPacker.zigZagSize(max)),
+					Math.min(plainSize, packedSize)))
+				return;
+			if (packedSize < plainSize) {
+				final boolean delta = deltaSize < forSize;
+				final int ref = delta ? obj[0] : min;
+				final int bits = delta ? deltaBits : forBits;
+				da.write(delta ? ARRAY_INT_DELTA : ARRAY_INT_FOR);
+				LongPacker.packInt(da, obj.length);
+				LongPacker.packIntZigZag(da, ref);
+				da.write(bits);
+				BitPacker.packInts(da, obj, delta ? 1 : 0, ref, delta, bits);
+				return;
+			}
+		}
+
+		boolean fitsInByte = 0 <= min && max <= 255;
+		boolean fitsInShort = Short.MIN_VALUE <= min && max <= Short.MAX_VALUE;
+
+		if (obj.length <= 255 && fitsInByte) {
+			da.write(ARRAY_INT_B_255);
+			da.write(obj.length);
+			for (int i : obj)
+				da.write(i);
+		} else if (fitsInByte) {
+			da.write(ARRAY_INT_B_INT);
+			LongPacker.packInt(da, obj.length);
+			for (int i : obj)
+				da.write(i);
+		} else if (0 <= min) {
+			da.write(ARRAY_INT_PACKED);
+			LongPacker.packInt(da, obj.length);
+			for (int l : obj)
+				LongPacker.packInt(da, l);
+		} else if (zigZagSize(obj) < fixedSize(min, max) * obj.length) {
+			da.write(ARRAY_INT_PACKED_SIGNED);
+			LongPacker.packInt(da, obj.length);
+			for (int l : obj)
+				LongPacker.packIntZigZag(da, l);
+		} else if (fitsInShort) {
+			da.write(ARRAY_INT_S);
+			LongPacker.packInt(da, obj.length);
+			for (int i : obj)
+				da.writeShort(i);
+		} else {
+			da.write(ARRAY_INT_I);
+			LongPacker.packInt(da, obj.length);
+			for (int i : obj)
+				da.writeInt(i);
+		}
+
+	}
+
+	/** number of bytes array takes with ZigZag packed elements */
+	private static long zigZagSize(int[] a) {
+		long size = 0;
+		for (int i : a)
+			size += LongPacker.zigZagSize(i);
+		return size;
+	}
+
+	private static long zigZagSize(long[] a) {
+		long size = 0;
+		for (long l : a)
+			size += LongPacker.zigZagSize(l);
+		return size;
+	}
+
+	/** bytes per element of smallest fixed size encoding for range */
+	private static long fixedSize(long min, long max) {
+		if (Short.MIN_VALUE <= min && max <= Short.MAX_VALUE)
+			return 2;
+		if (Integer.MIN_VALUE <= min && max <= Integer.MAX_VALUE)
+			return 4;
+		return 8;
+	}
+
+	/**
+	 * number of bytes elements take with encoding chosen if array is not
+	 * bit packed
+	 */
+	private static long elementsSize(int[] a, int min, int max) {
+		if (0 <= min && max <= 255)
+			return a.length;
+		if (0 <= min) {
+			long size = 0;
+			for (int i : a)
+				size += LongPacker.packedSize(i);
+			return size;
+		}
+		return Math.min(zigZagSize(a), fixedSize(min, max) * a.length);
+	}
+
+	private static long elementsSize(long[] a, long min, long max) {
+		if (0 <= min && max <= 255)
+			return a.length;
+		if (0 <= min) {
+			long size = 0;
+			for (long l : a)
+				size += LongPacker.packedSize(l);
+			return size;
+		}
+		return Math.min(zigZagSize(a), fixedSize(min, max) * a.length);
+	}
+
+	/**
+	 * Writes int, long, double or byte array as runs of equal elements or as
+	 * non-zero elements with their indexes, if estimated size of either is
+	 * smaller than size of other encoding. Returns false if nothing was
+	 * written.
+	 * 
+	 * @param type
+	 *            'I', 'J', 'D' or 'B' for int, long, double or byte array
+	 * @param runs
+	 *            number of runs of equal elements
+	 * @param nonZero
+	 *            number of elements which are not zero
+	 * @param valueSize
+	 *            maximal size of written element
+	 * @param plainSize
+	 *            size of elements with other encoding
+	 */
+	static boolean writeRunsOrSparse(DataOutput out, Object a, int type,
+			int length, int runs, int nonZero, int valueSize, long plainSize)
+			throws IOException {
+		if (length < SPARSE_MIN_LENGTH)
+			return false;
+		// run length or index gap is usually single byte
+		final long runsSize = runs * (1L + valueSize);
+		final long sparseSize = nonZero * (1L + valueSize);
+		if (Math.min(runsSize, sparseSize) + 2 >= plainSize)
+			return false;
+
+		out.write(sparseSize <= runsSize ? ARRAY_SPARSE : ARRAY_RUNS);
+		out.write(type);
+		LongPacker.packInt(out, length);
+		if (sparseSize <= runsSize) {
+			LongPacker.packInt(out, nonZero);
+			int last = -1;
+			for (int i = 0; i < length; i++) {
+				final long v = element(a, type, i);
+				if (v != 0) {
+					LongPacker.packInt(out, i - last - 1);
+					writeElement(out, type, v);
+					last = i;
+				}
+			}
+		} else {
+			LongPacker.packInt(out, runs);
+			int start = 0;
+			for (int i = 1; i <= length; i++) {
+				if (i == length
+						|| element(a, type, i) != element(a, type, start)) {
+					LongPacker.packInt(out, i - start);
+					writeElement(out, type, element(a, type, start));
+					start = i;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static Object deserializeRunsOrSparse(DataInput is, boolean sparse)
+			throws IOException {
+		final int type = is.readUnsignedByte();
+		final int length = LongPacker.unpackInt(is);
+		final Object a;
+		switch (type) {
+		case 'I':
+			a = new int[length];
+			break;
+		case 'J':
+			a = new long[length];
+			break;
+		case 'D':
+			a = new double[length];
+			break;
+		case 'B':
+			a = new byte[length];
+			break;
+		default:
+			throw new InternalError("unknown array type: " + type);
+		}
+		final int count = LongPacker.unpackInt(is);
+		int pos = 0;
+		for (int k = 0; k < count; k++) {
+			if (sparse) {
+				pos += LongPacker.unpackInt(is);
+				setElements(a, type, pos, pos + 1, readElement(is, type));
+				pos++;
+			} else {
+				final int n = LongPacker.unpackInt(is);
+				setElements(a, type, pos, pos + n, readElement(is, type));
+				pos += n;
+			}
+		}
+		return a;
+	}
+
+	/** element of array as long, doubles are converted to bits */
+	private static long element(Object a, int type, int i) {
+		switch (type) {
+		case 'I':
+			return ((int[]) a)[i];
+		case 'J':
+			return ((long[]) a)[i];
+		case 'D':
+			return Double.doubleToLongBits(((double[]) a)[i]);
+		default:
+			return ((byte[]) a)[i];
+		}
+	}
+
+	private static void setElements(Object a, int type, int from, int to,
+			long v) {
+		switch (type) {
+		case 'I':
+			Arrays.fill((int[]) a, from, to, (int) v);
+			break;
+		case 'J':
+			Arrays.fill((long[]) a, from, to, v);
+			break;
+		case 'D':
+			Arrays.fill((double[]) a, from, to, Double.longBitsToDouble(v));
+			break;
+		default:
+			Arrays.fill((byte[]) a, from, to, (byte) v);
+		}
+	}
+
+	private static void writeElement(DataOutput out, int type, long v)
+			throws IOException {
+		switch (type) {
+		case 'D':
+			out.writeLong(v);
+			break;
+		case 'B':
+			out.write((int) v);
+			break;
+		default:
+			LongPacker.packLongZigZag(out, v);
+		}
+	}
+
+	private static long readElement(DataInput in, int type) throws IOException {
+		switch (type) {
+		case 'D':
+			return in.readLong();
+		case 'B':
+			return in.readByte();
+		default:
+			return LongPacker.unpackLongZigZag(in);
+		}
+	}
+
+	private void writeInteger(DataOutput da, final int val) throws IOException {
+		if (val == -1)
+			da.write(INTEGER_MINUS_1);
+		else if (val == 0)
+			da.write(INTEGER_0);
+		else if (val == 1)
+			da.write(INTEGER_1);
+		else if (val == 2)
+			da.write(INTEGER_2);
+		else if (val == 3)
+			da.write(INTEGER_3);
+		else if (val == 4)
+			da.write(INTEGER_4);
 		else if (val == 5)
 			da.write(INTEGER_5);
 		else if (val == 6)
@@ -583,6 +1576,272 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		}
 	}
 
+	/**
+	 * Writes field value. Type of field is known to reader, so primitive
+	 * fields, strings and objects of final classes are written without
+	 * header.
+	 */
+	protected void writeField(DataOutput out, Object obj, FieldInfo field,
+			FastArrayList objectStack) throws IOException {
+		switch (field.typeCode) {
+		case 'I':
+			LongPacker.packIntZigZag(out, field.getInt(obj));
+			break;
+		case 'J':
+			LongPacker.packLongZigZag(out, field.getLong(obj));
+			break;
+		case 'D':
+			// header of double works as compression
+			writeDouble(out, field.getDouble(obj));
+			break;
+		case 'F':
+			writeFloat(out, field.getFloat(obj));
+			break;
+		case 'S':
+			LongPacker.packIntZigZag(out, field.getShort(obj));
+			break;
+		case 'B':
+			out.write(field.getByte(obj));
+			break;
+		case 'C':
+			LongPacker.packInt(out, field.getChar(obj));
+			break;
+		case 'Z':
+			out.write(field.getBoolean(obj) ? 1 : 0);
+			break;
+		default:
+			writeFieldValue(out, getFieldValue(field, obj), field, objectStack);
+		}
+	}
+
+	protected void writeFieldValue(DataOutput out, Object value,
+			FieldInfo field, FastArrayList objectStack) throws IOException {
+		if (field.typeCode == 'E') {
+			LongPacker.packInt(out, value == null ? 0
+					: ((Enum) value).ordinal() + 1);
+			return;
+		}
+		if (field.getTypeClass() == String.class) {
+			writeStringField(out, (String) value, objectStack);
+			return;
+		}
+		final int classId = finalClassId(field);
+		if (classId < 0)
+			serialize(out, value, objectStack);
+		else
+			writeFinalField(out, value, classId, objectStack);
+	}
+
+	protected void readField(DataInput in, Object obj, FieldInfo field,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		switch (field.typeCode) {
+		case 'I':
+			field.setInt(obj, LongPacker.unpackIntZigZag(in));
+			break;
+		case 'J':
+			field.setLong(obj, LongPacker.unpackLongZigZag(in));
+			break;
+		case 'D':
+			field.setDouble(obj, readDouble(in));
+			break;
+		case 'F':
+			field.setFloat(obj, readFloat(in));
+			break;
+		case 'S':
+			field.setShort(obj, (short) LongPacker.unpackIntZigZag(in));
+			break;
+		case 'B':
+			field.setByte(obj, in.readByte());
+			break;
+		case 'C':
+			field.setChar(obj, (char) LongPacker.unpackInt(in));
+			break;
+		case 'Z':
+			field.setBoolean(obj, in.readUnsignedByte() != 0);
+			break;
+		case 'E':
+			final int ordinal = LongPacker.unpackInt(in);
+			setFieldValue(field, obj, ordinal == 0 ? null
+					: field.enumConstants[ordinal - 1]);
+			break;
+		default:
+			final Object value;
+			if (field.getTypeClass() == String.class) {
+				value = readStringField(in, objectStack);
+			} else {
+				final int classId = finalClassId(field);
+				if (classId < 0)
+					value = deserialize(in, objectStack);
+				else
+					value = readFinalField(in, classId, objectStack);
+			}
+			setFieldValue(field, obj, value);
+		}
+	}
+
+	/**
+	 * Returns class id if field type is final class written by
+	 * writeObject, so class header can be omitted. Otherwise returns -1.
+	 */
+	private int finalClassId(FieldInfo field) throws IOException {
+		int classId = field.finalClassId;
+		if (classId == FieldInfo.UNRESOLVED) {
+			classId = -1;
+			Class type = field.getTypeClass();
+			if (type != null && !type.isArray()
+					&& Modifier.isFinal(type.getModifiers())
+					&& Serializable.class.isAssignableFrom(type)) {
+				Codec codec = codecFor(type);
+				if (codec instanceof NormalCodec)
+					classId = ((NormalCodec) codec).classId;
+			}
+			field.finalClassId = classId;
+		}
+		return classId;
+	}
+
+	/**
+	 * Returns index of object in object stack, or adds object to stack and
+	 * returns -1.
+	 */
+	private static int trackReference(Object obj, FastArrayList objectStack) {
+		if (!objectStack.tracking || !isTracked(obj))
+			return -1;
+		int index = objectStack.identityIndexOf(obj);
+		if (index == -1)
+			objectStack.add(obj);
+		return index;
+	}
+
+	// Markers of string and final fields, values bigger than
+	// FIELD_REFERENCE denote new value. For objects flags of object header
+	// are added to FIELD_OBJECT.
+	private static final int FIELD_NULL = 0;
+	private static final int FIELD_REFERENCE = 1;
+	private static final int FIELD_DEDUPLICATED = 2;
+	private static final int FIELD_OBJECT = 3;
+
+	private void writeStringField(DataOutput out, String s,
+			FastArrayList objectStack) throws IOException {
+		if (s == null) {
+			out.write(FIELD_NULL);
+			return;
+		}
+		if (dedupWritten != null && isDeduplicated(s, dedupWrittenFlags)) {
+			Integer index = dedupWritten.get(s);
+			if (index != null) {
+				out.write(FIELD_DEDUPLICATED);
+				LongPacker.packInt(out, index);
+				return;
+			}
+			dedupWritten.put(s, dedupWritten.size());
+		}
+		final int index = trackReference(s, objectStack);
+		if (index != -1) {
+			out.write(FIELD_REFERENCE);
+			LongPacker.packInt(out, index);
+			return;
+		}
+		final boolean latin1 = isLatin1(s);
+		LongPacker.packInt(out, ((s.length() << 1) | (latin1 ? 0 : 1))
+				+ FIELD_DEDUPLICATED + 1);
+		writeChars(out, s, latin1);
+	}
+
+	private String readStringField(DataInput in, FastArrayList objectStack)
+			throws IOException {
+		final int marker = LongPacker.unpackInt(in);
+		if (marker == FIELD_NULL)
+			return null;
+		if (marker == FIELD_REFERENCE)
+			return (String) objectStack.get(LongPacker.unpackInt(in));
+		if (marker == FIELD_DEDUPLICATED)
+			return (String) dedupRead.get(LongPacker.unpackInt(in));
+		final int len = marker - FIELD_DEDUPLICATED - 1;
+		String s = readChars(in, len >>> 1, (len & 1) == 0);
+		if (isTracked(s))
+			objectStack.add(s);
+		if (dedupRead != null && isDeduplicated(s, dedupReadFlags))
+			dedupRead.add(s);
+		return s;
+	}
+
+	private void writeFinalField(DataOutput out, Object value, int classId,
+			FastArrayList objectStack) throws IOException {
+		if (value == null) {
+			out.write(FIELD_NULL);
+			return;
+		}
+		final int index = trackReference(value, objectStack);
+		if (index != -1) {
+			out.write(FIELD_REFERENCE);
+			LongPacker.packInt(out, index);
+			return;
+		}
+		// marker with flags fits into single byte
+		if (path != null) {
+			if (path.put(value, value) != null)
+				throw new IllegalStateException(
+						"Cyclic reference with reference tracking disabled: "
+								+ value.getClass().getName());
+			writeObject(out, value, classId, FIELD_OBJECT, objectStack);
+			path.remove(value);
+		} else {
+			writeObject(out, value, classId, FIELD_OBJECT, objectStack);
+		}
+	}
+
+	private Object readFinalField(DataInput in, int classId,
+			FastArrayList objectStack) throws IOException {
+		final int marker = in.readUnsignedByte();
+		if (marker == FIELD_NULL)
+			return null;
+		if (marker == FIELD_REFERENCE)
+			return objectStack.get(LongPacker.unpackInt(in));
+		return readObjectBody(in, classId, marker - FIELD_OBJECT, objectStack);
+	}
+
+	private static double readDouble(DataInput is) throws IOException {
+		final int head = is.readUnsignedByte();
+		switch (head) {
+		case DOUBLE_MINUS_1:
+			return -1;
+		case DOUBLE_0:
+			return 0;
+		case DOUBLE_1:
+			return 1;
+		case DOUBLE_255:
+			return is.readUnsignedByte();
+		case DOUBLE_SHORT:
+			return is.readShort();
+		case DOUBLE_FULL:
+			return is.readDouble();
+		default:
+			throw new InternalError("Unexpected header for double: " + head);
+		}
+	}
+
+	private static float readFloat(DataInput is) throws IOException {
+		final int head = is.readUnsignedByte();
+		switch (head) {
+		case FLOAT_MINUS_1:
+			return -1;
+		case FLOAT_0:
+			return 0;
+		case FLOAT_1:
+			return 1;
+		case FLOAT_255:
+			return is.readUnsignedByte();
+		case FLOAT_SHORT:
+			return is.readShort();
+		case FLOAT_FULL:
+			return is.readFloat();
+		default:
+			throw new InternalError("Unexpected header for float: " + head);
+		}
+	}
+
 	/**
 	 * Deserialize an object from a byte array
 	 * 
@@ -600,7 +1859,15 @@ public class Serialization extends SerialClassInfo implements Serializer {
 	}
 
 	static String deserializeString(DataInput buf) throws IOException {
-		int len = LongPacker.unpackInt(buf);
+		final int len = LongPacker.unpackInt(buf);
+		return readChars(buf, len >>> 1, (len & 1) == 0);
+	}
+
+	/**
+	 * Reads string in old format, one packed int per char.
+	 */
+	private static String deserializeChars(DataInput buf, int len)
+			throws IOException {
 		char[] b = new char[len];
 		for (int i = 0; i < len; i++)
 			b[i] = (char) LongPacker.unpackInt(buf);
@@ -753,12 +2020,24 @@ public class Serialization extends SerialClassInfo implements Serializer {
 			for (int i = 0; i < size; i++)
 				((boolean[]) ret)[i] = is.readBoolean();
 			break;
+		case BOOLEAN_ARRAY_PACKED:
+			ret = new boolean[LongPacker.unpackInt(is)];
+			readBooleans(is, (boolean[]) ret);
+			break;
 		case DOUBLE_ARRAY:
 			size = LongPacker.unpackInt(is);
 			ret = new double[size];
 			for (int i = 0; i < size; i++)
 				((double[]) ret)[i] = is.readDouble();
 			break;
+		case DOUBLE_ARRAY_XOR:
+			ret = new double[LongPacker.unpackInt(is)];
+			BitPacker.unpackXor(is, (double[]) ret);
+			break;
+		case FLOAT_ARRAY_XOR:
+			ret = new float[LongPacker.unpackInt(is)];
+			BitPacker.unpackXor(is, (float[]) ret);
+			break;
 		case FLOAT_ARRAY:
 			size = LongPacker.unpackInt(is);
 			ret = new float[size];
@@ -769,10 +2048,21 @@ public class Serialization extends SerialClassInfo implements Serializer {
 			size = LongPacker.unpackInt(is);
 			ret = new char[size];
 			for (int i = 0; i < size; i++)
-				((char[]) ret)[i] = is.readChar();
+				((char[]) ret)[i] = readOldChar(is);
+			break;
+		case CHAR_ARRAY_LATIN1:
+			ret = new char[LongPacker.unpackInt(is)];
+			readChars(is, (char[]) ret, true);
+			break;
+		case CHAR_ARRAY_UTF8:
+			ret = new char[LongPacker.unpackInt(is)];
+			readChars(is, (char[]) ret, false);
 			break;
 		case CHAR:
-			ret = Character.valueOf(is.readChar());
+			ret = Character.valueOf(readOldChar(is));
+			break;
+		case CHAR_PACKED:
+			ret = Character.valueOf((char) LongPacker.unpackInt(is));
 			break;
 		case FLOAT_MINUS_1:
 			ret = Float.valueOf(-1);
@@ -817,8 +2107,25 @@ public class Serialization extends SerialClassInfo implements Serializer {
 			ret = new BigDecimal(new BigInteger(deserializeArrayByteInt(is)),
 					LongPacker.unpackInt(is));
 			break;
+		case BIGINTEGER_LONG:
+			ret = BigInteger.valueOf(LongPacker.unpackLongZigZag(is));
+			break;
+		case BIGDECIMAL_LONG:
+			final long unscaled = LongPacker.unpackLongZigZag(is);
+			ret = BigDecimal.valueOf(unscaled, LongPacker.unpackIntZigZag(is));
+			break;
+		case BIGDECIMAL_SIGNED_SCALE:
+			ret = new BigDecimal(new BigInteger(deserializeArrayByteInt(is)),
+					LongPacker.unpackIntZigZag(is));
+			break;
+		case STRING_LATIN1:
+			ret = readChars(is, LongPacker.unpackInt(is), true);
+			break;
+		case STRING_UTF8:
+			ret = readChars(is, LongPacker.unpackInt(is), false);
+			break;
 		case STRING:
-			ret = deserializeString(is);
+			ret = deserializeChars(is, LongPacker.unpackInt(is));
 			break;
 		case STRING_EMPTY:
 			ret = Utils.EMPTY_STRING;
@@ -827,9 +2134,18 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		case CLASS:
 			ret = deserializeClass(is);
 			break;
+		case ENUM:
+			final int enumClassId = LongPacker.unpackInt(is);
+			ret = getEnumConstant(enumClassId, LongPacker.unpackInt(is));
+			break;
 		case DATE:
 			ret = new Date(is.readLong());
 			break;
+		case DATE_PACKED:
+			final long time = LongPacker.unpackLongZigZag(is);
+			ret = new Date(((time & 1) == 0 ? (time >> 1) * 1000 : time >> 1)
+					+ dateEpoch);
+			break;
 		case ARRAY_INT_B_255:
 			ret = deserializeArrayIntB255(is);
 			break;
@@ -845,6 +2161,23 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		case ARRAY_INT_PACKED:
 			ret = deserializeArrayIntPack(is);
 			break;
+		case ARRAY_INT_FOR:
+		case ARRAY_INT_DELTA:
+			ret = new int[LongPacker.unpackInt(is)];
+			int intRef = LongPacker.unpackIntZigZag(is);
+			int bits = is.readUnsignedByte();
+			if (head == ARRAY_INT_DELTA && ((int[]) ret).length > 0) {
+				((int[]) ret)[0] = intRef;
+				BitPacker.unpackInts(is, (int[]) ret, 1, intRef, true, bits);
+			} else
+				BitPacker.unpackInts(is, (int[]) ret, 0, intRef, false, bits);
+			break;
+		case ARRAY_INT_PACKED_SIGNED:
+			size = LongPacker.unpackInt(is);
+			ret = new int[size];
+			for (int i = 0; i < size; i++)
+				((int[]) ret)[i] = LongPacker.unpackIntZigZag(is);
+			break;
 		case ARRAY_LONG_B:
 			ret = deserializeArrayLongB(is);
 			break;
@@ -860,12 +2193,82 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		case ARRAY_LONG_PACKED:
 			ret = deserializeArrayLongPack(is);
 			break;
+		case ARRAY_LONG_FOR:
+		case ARRAY_LONG_DELTA:
+			ret = new long[LongPacker.unpackInt(is)];
+			long longRef = LongPacker.unpackLongZigZag(is);
+			bits = is.readUnsignedByte();
+			if (head == ARRAY_LONG_DELTA && ((long[]) ret).length > 0) {
+				((long[]) ret)[0] = longRef;
+				BitPacker.unpackLongs(is, (long[]) ret, 1, longRef, true, bits);
+			} else
+				BitPacker.unpackLongs(is, (long[]) ret, 0, longRef, false, bits);
+			break;
+		case ARRAY_LONG_PACKED_SIGNED:
+			size = LongPacker.unpackInt(is);
+			ret = new long[size];
+			for (int i = 0; i < size; i++)
+				((long[]) ret)[i] = LongPacker.unpackLongZigZag(is);
+			break;
 		case ARRAYLIST_PACKED_LONG:
 			ret = deserializeArrayListPackedLong(is);
 			break;
 		case ARRAY_BYTE_INT:
 			ret = deserializeArrayByteInt(is);
 			break;
+		case ARRAY_RUNS:
+			ret = deserializeRunsOrSparse(is, false);
+			break;
+		case SerializationHeader.UUID:
+			ret = new UUID(is.readLong(), is.readLong());
+			break;
+		case BITSET:
+			ret = readBits(is);
+			break;
+		case ATOMIC_LONG:
+			ret = new AtomicLong(LongPacker.unpackLongZigZag(is));
+			break;
+		case STRING_BUILDER:
+			ret = new StringBuilder(deserializeString(is));
+			break;
+		case URI:
+			ret = java.net.URI.create(deserializeString(is));
+			break;
+		case LOCALE:
+			final String language = deserializeString(is);
+			final String country = deserializeString(is);
+			ret = new Locale(language, country, deserializeString(is));
+			break;
+		case LOCALE_TAG:
+			if (LOCALE_FOR_LANGUAGE_TAG == null)
+				throw new InvalidObjectException(
+						"Locale language tags need Java 7");
+			ret = invoke(LOCALE_FOR_LANGUAGE_TAG, null, deserializeString(is));
+			break;
+		case EMPTY_LIST:
+			ret = Collections.EMPTY_LIST;
+			break;
+		case EMPTY_SET:
+			ret = Collections.EMPTY_SET;
+			break;
+		case EMPTY_MAP:
+			ret = Collections.EMPTY_MAP;
+			break;
+		case INSTANT:
+		case LOCAL_DATE:
+		case LOCAL_DATE_TIME:
+		case DURATION:
+			ret = Java8Codecs.read(head, is);
+			break;
+		case ARRAY_SPARSE:
+			ret = deserializeRunsOrSparse(is, true);
+			break;
+		case TREE:
+			return deserialize(is, NO_REFERENCES);
+		case DEDUP:
+			return deserializeDeduplicated(is);
+		case VALUE_REF:
+			return dedupRead.get(LongPacker.unpackInt(is));
 		case JAVA_SERIALIZATION:
 			throw new InternalError(
 					"Wrong header, data were probably serialized with OutputStream, not with JDBM serialization");
@@ -876,8 +2279,11 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		}
 
 		if (ret != null || head == NULL) {
-			if (objectStack != null)
+			if (objectStack != null && isTracked(ret))
 				objectStack.add(ret);
+			if (dedupRead != null && ret != null
+					&& isDeduplicated(ret, dedupReadFlags))
+				dedupRead.add(ret);
 			return ret;
 		}
 
@@ -889,10 +2295,16 @@ public class Serialization extends SerialClassInfo implements Serializer {
 
 		switch (head) {
 		case NORMAL:
+			ret = readNormalObject(is, objectStack);
+			break;
+		case OBJECT:
 			ret = readObject(is, objectStack);
 			break;
 		case OBJECT_STACK:
 			ret = objectStack.get(LongPacker.unpackInt(is));
+			if (ret == FastArrayList.RESERVED)
+				throw new InvalidObjectException(
+						"Object is referenced from its own contents before it is created");
 			break;
 		case ARRAYLIST:
 			ret = deserializeArrayList(is, objectStack);
@@ -936,20 +2348,219 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		case PROPERTIES:
 			ret = deserializeProperties(is, objectStack);
 			break;
+		case CUSTOM:
+			ret = deserializeCustom(is);
+			break;
+		case ENUM_SET:
+			ret = deserializeEnumSet(is, objectStack);
+			break;
+		case ENUM_MAP:
+			ret = deserializeEnumMap(is, objectStack);
+			break;
+		case HOMOGENEOUS:
+			ret = deserializeHomogeneous(is, objectStack);
+			break;
+		case PACKED_NUMBERS:
+			ret = deserializePackedNumbers(is, objectStack);
+			break;
+		case COLLECTION:
+			ret = deserializeCollection(is, objectStack);
+			break;
+		case MAP:
+			ret = deserializeMap(is, objectStack);
+			break;
+		case SORTED_COLLECTION:
+		case SORTED_MAP:
+			ret = deserializeSorted(head, is, objectStack);
+			break;
+		case BOUNDED_QUEUE:
+			ret = deserializeBoundedQueue(is, objectStack);
+			break;
+		case CONCURRENT_HASHMAP:
+			ret = deserializeConcurrentHashMap(is, objectStack);
+			break;
+		case ARRAY_DEQUE:
+			ret = deserializeArrayDeque(is, objectStack);
+			break;
+		case COPY_ON_WRITE_ARRAYLIST:
+			ret = deserializeCopyOnWriteArrayList(is, objectStack);
+			break;
+		case PRIORITY_QUEUE:
+			ret = deserializePriorityQueue(is, objectStack);
+			break;
+		case SINGLETON_LIST:
+		case SINGLETON_SET:
+		case SINGLETON_MAP:
+			ret = deserializeSingleton(head, is, objectStack);
+			break;
+		case UNMODIFIABLE:
+			ret = deserializeUnmodifiable(is, objectStack);
+			break;
+		case IMMUTABLE_LIST:
+		case IMMUTABLE_SET:
+		case IMMUTABLE_MAP:
+			ret = deserializeImmutable(head, is, objectStack);
+			break;
+		case ARRAYS_AS_LIST:
+			ret = deserializeArraysAsList(is, objectStack);
+			break;
+		case OPTIONAL:
+			ret = Java8Codecs.readOptional(this, is, objectStack);
+			break;
 
 		default:
 			throw new InternalError("Unknown serialization header: " + head);
 		}
 
-		if (head != OBJECT_STACK && objectStack.size() == oldObjectStackSize) {
+		if (head != OBJECT_STACK && objectStack.size() == oldObjectStackSize
+				&& isTracked(ret)) {
 			// check if object was not already added to stack as part of
 			// collection
 			objectStack.add(ret);
 		}
+		// value written by custom serializer
+		if (dedupRead != null && head != OBJECT_STACK && ret != null
+				&& isDeduplicated(ret, dedupReadFlags))
+			dedupRead.add(ret);
 
 		return ret;
 	}
 
+	private Object deserializeDeduplicated(DataInput is) throws IOException,
+			ClassNotFoundException {
+		FastArrayList oldRead = dedupRead;
+		int oldFlags = dedupReadFlags;
+		dedupReadFlags = is.readUnsignedByte();
+		dedupRead = new FastArrayList();
+		try {
+			return deserialize(is, null);
+		} finally {
+			dedupRead = oldRead;
+			dedupReadFlags = oldFlags;
+		}
+	}
+
+	private EnumSet deserializeEnumSet(DataInput is, FastArrayList objectStack)
+			throws IOException, ClassNotFoundException {
+		final Object[] constants = getEnumConstants(LongPacker.unpackInt(is));
+		EnumSet s = EnumSet.noneOf(((Enum) constants[0]).getDeclaringClass());
+		objectStack.add(s);
+		for (int ordinal : readOrdinals(is))
+			s.add(constants[ordinal]);
+		return s;
+	}
+
+	private EnumMap deserializeEnumMap(DataInput is, FastArrayList objectStack)
+			throws IOException, ClassNotFoundException {
+		final Object[] constants = getEnumConstants(LongPacker.unpackInt(is));
+		// array of constants is typed, also if enum has no constants
+		EnumMap m = new EnumMap(constants.getClass().getComponentType());
+		objectStack.add(m);
+		for (int ordinal : readOrdinals(is))
+			m.put(constants[ordinal], deserialize(is, objectStack));
+		return m;
+	}
+
+	/**
+	 * Returns class id of enum type of elements, or -1 if collection is
+	 * empty.
+	 */
+	private int enumClassId(Collection<Enum> c) throws IOException {
+		if (c.isEmpty())
+			return -1;
+		return enumClassId(c.iterator().next().getDeclaringClass());
+	}
+
+	private int enumClassId(Class type) throws IOException {
+		return ((EnumCodec) codecFor(type)).classId;
+	}
+
+	/**
+	 * Returns key type of EnumMap. It is not exposed by EnumMap API, but it
+	 * is part of its serialized form, so it is taken from class descriptors
+	 * written by Java serialization. The first enum class written is the key
+	 * type, since the map has no values. Used only for empty maps.
+	 */
+	static Class enumMapKeyType(EnumMap map) throws IOException {
+		final Class[] keyType = new Class[1];
+		ObjectOutputStream out = new ObjectOutputStream(
+				new ByteArrayOutputStream()) {
+			protected void annotateClass(Class c) {
+				if (keyType[0] == null && c.isEnum())
+					keyType[0] = c;
+			}
+		};
+		out.writeObject(map);
+		out.close();
+		if (keyType[0] == null)
+			throw new NotSerializableException("Key type of EnumMap not found");
+		return keyType[0];
+	}
+
+	/**
+	 * Writes ordinals of enums as bitmap, preceded by number of bits.
+	 * Elements must be sorted by ordinal.
+	 */
+	private static void writeOrdinals(DataOutput out, Collection<Enum> c)
+			throws IOException {
+		int bits = 0;
+		for (Enum e : c)
+			bits = e.ordinal() + 1;
+		final byte[] bitmap = new byte[(bits + 7) >>> 3];
+		for (Enum e : c)
+			bitmap[e.ordinal() >>> 3] |= 1 << (e.ordinal() & 7);
+		LongPacker.packInt(out, bits);
+		out.write(bitmap);
+	}
+
+	private static int[] readOrdinals(DataInput in) throws IOException {
+		final int bits = LongPacker.unpackInt(in);
+		final byte[] bitmap = new byte[(bits + 7) >>> 3];
+		in.readFully(bitmap);
+		int count = 0;
+		for (byte b : bitmap)
+			count += Integer.bitCount(b & 0xFF);
+		final int[] ordinals = new int[count];
+		for (int i = 0, n = 0; i < bits; i++) {
+			if ((bitmap[i >>> 3] & (1 << (i & 7))) != 0)
+				ordinals[n++] = i;
+		}
+		return ordinals;
+	}
+
+	/**
+	 * Writes BitSet the same way as enum ordinals, number of bits followed by
+	 * bitmap
+	 */
+	private static void writeBits(DataOutput out, BitSet bits)
+			throws IOException {
+		final byte[] bitmap = new byte[(bits.length() + 7) >>> 3];
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+			bitmap[i >>> 3] |= 1 << (i & 7);
+		LongPacker.packInt(out, bits.length());
+		out.write(bitmap);
+	}
+
+	private static BitSet readBits(DataInput in) throws IOException {
+		final int length = LongPacker.unpackInt(in);
+		final byte[] bitmap = new byte[(length + 7) >>> 3];
+		in.readFully(bitmap);
+		final BitSet bits = new BitSet(length);
+		for (int i = 0; i < length; i++) {
+			if ((bitmap[i >>> 3] & (1 << (i & 7))) != 0)
+				bits.set(i);
+		}
+		return bits;
+	}
+
+	private Object deserializeCustom(DataInput is) throws IOException,
+			ClassNotFoundException {
+		int id = LongPacker.unpackInt(is);
+		if (id >= customSerializers.size())
+			throw new InternalError("Unknown custom serializer: " + id);
+		return customSerializers.get(id).deserialize(is);
+	}
+
 	private Class deserializeClass(DataInput is) throws IOException,
 			ClassNotFoundException {
 		String className = (String) deserialize(is);
@@ -1079,6 +2690,81 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		return s;
 	}
 
+	private Object deserializeHomogeneous(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int kind = is.readUnsignedByte();
+		final int size = LongPacker.unpackInt(is);
+		Object[] array = null;
+		Collection c = null;
+		switch (kind) {
+		case ARRAY_OBJECT:
+			array = (Object[]) Array.newInstance(getClass(LongPacker
+					.unpackInt(is)), size);
+			break;
+		case ARRAYLIST:
+			c = new ArrayList<Object>(size);
+			break;
+		case LINKEDLIST:
+			c = new java.util.LinkedList<Object>();
+			break;
+		case VECTOR:
+			c = new Vector<Object>(size);
+			break;
+		default:
+			throw new InternalError("Unknown homogeneous collection: " + kind);
+		}
+		objectStack.add(array != null ? array : c);
+		final int type = LongPacker.unpackInt(is);
+		for (int i = 0; i < size; i++) {
+			if (array != null)
+				array[i] = readElement(is, type, objectStack);
+			else
+				c.add(readElement(is, type, objectStack));
+		}
+		return array != null ? array : c;
+	}
+
+	private Object deserializePackedNumbers(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int kind = is.readUnsignedByte();
+		final int size = LongPacker.unpackInt(is);
+		if (kind == ARRAY_OBJECT) {
+			Object[] array = (Object[]) Array.newInstance(getClass(LongPacker
+					.unpackInt(is)), size);
+			objectStack.add(array);
+			readNumbers(is, array);
+			return array;
+		}
+		final Collection c;
+		switch (kind) {
+		case ARRAYLIST:
+			c = new ArrayList<Object>(size);
+			break;
+		case LINKEDLIST:
+			c = new java.util.LinkedList<Object>();
+			break;
+		case VECTOR:
+			c = new Vector<Object>(size);
+			break;
+		case HASHSET:
+			c = new HashSet<Object>(size);
+			break;
+		case LINKEDHASHSET:
+			c = new LinkedHashSet<Object>(size);
+			break;
+		default:
+			throw new InternalError("Unknown packed numbers collection: "
+					+ kind);
+		}
+		objectStack.add(c);
+		final Object[] values = new Object[size];
+		readNumbers(is, values);
+		c.addAll(Arrays.asList(values));
+		return c;
+	}
+
 	private Object[] deserializeArrayObjectPackedLong(DataInput is)
 			throws IOException, ClassNotFoundException {
 		int size = is.readUnsignedByte();
@@ -1181,30 +2867,254 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		return s;
 	}
 
-	private TreeMap<Object, Object> deserializeTreeMap(DataInput is,
+	private TreeMap<Object, Object> deserializeTreeMap(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+
+		TreeMap<Object, Object> s = new TreeMap<Object, Object>();
+		objectStack.add(s);
+		Comparator comparator = (Comparator) deserialize(is, objectStack);
+		if (comparator != null)
+			s = new TreeMap<Object, Object>(comparator);
+		for (int i = 0; i < size; i++)
+			s.put(deserialize(is, objectStack), deserialize(is, objectStack));
+		return s;
+	}
+
+	private HashMap<Object, Object> deserializeHashMap(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+
+		HashMap<Object, Object> s = new HashMap<Object, Object>(size);
+		objectStack.add(s);
+		for (int i = 0; i < size; i++)
+			s.put(deserialize(is, objectStack), deserialize(is, objectStack));
+		return s;
+	}
+
+	private Collection deserializeCollection(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int classId = LongPacker.unpackInt(is);
+		int size = LongPacker.unpackInt(is);
+		Collection s = (Collection) newCollection(classId, size);
+		objectStack.add(s);
+		for (int i = 0; i < size; i++)
+			s.add(deserialize(is, objectStack));
+		return s;
+	}
+
+	private Map deserializeMap(DataInput is, FastArrayList objectStack)
+			throws IOException, ClassNotFoundException {
+		final int classId = LongPacker.unpackInt(is);
+		int size = LongPacker.unpackInt(is);
+		Map s = (Map) newCollection(classId, size);
+		objectStack.add(s);
+		for (int i = 0; i < size; i++)
+			s.put(deserialize(is, objectStack), deserialize(is, objectStack));
+		return s;
+	}
+
+	private Object deserializeSorted(int head, DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int classId = LongPacker.unpackInt(is);
+		// collection is created after its comparator, so its place in object
+		// stack is reserved
+		final int pos = objectStack.reserve();
+		Comparator comparator = (Comparator) deserialize(is, objectStack);
+		Object s = newCollection(classId, Comparator.class, comparator);
+		objectStack.set(pos, s);
+		int size = LongPacker.unpackInt(is);
+		if (head == SORTED_MAP) {
+			Map m = (Map) s;
+			for (int i = 0; i < size; i++)
+				m.put(deserialize(is, objectStack), deserialize(is,
+						objectStack));
+		} else {
+			Collection c = (Collection) s;
+			for (int i = 0; i < size; i++)
+				c.add(deserialize(is, objectStack));
+		}
+		return s;
+	}
+
+	private Collection deserializeBoundedQueue(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int classId = LongPacker.unpackInt(is);
+		final int capacity = LongPacker.unpackInt(is);
+		Collection s = (Collection) newCollection(classId, int.class,
+				capacity);
+		objectStack.add(s);
+		int size = LongPacker.unpackInt(is);
+		for (int i = 0; i < size; i++)
+			s.add(deserialize(is, objectStack));
+		return s;
+	}
+
+	private ConcurrentHashMap<Object, Object> deserializeConcurrentHashMap(
+			DataInput is, FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+		ConcurrentHashMap<Object, Object> s = new ConcurrentHashMap<Object, Object>(
+				size);
+		objectStack.add(s);
+		for (int i = 0; i < size; i++)
+			s.put(deserialize(is, objectStack), deserialize(is, objectStack));
+		return s;
+	}
+
+	private ArrayDeque<Object> deserializeArrayDeque(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+		ArrayDeque<Object> s = new ArrayDeque<Object>(size);
+		objectStack.add(s);
+		for (int i = 0; i < size; i++)
+			s.add(deserialize(is, objectStack));
+		return s;
+	}
+
+	private CopyOnWriteArrayList<Object> deserializeCopyOnWriteArrayList(
+			DataInput is, FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+		CopyOnWriteArrayList<Object> s = new CopyOnWriteArrayList<Object>();
+		objectStack.add(s);
+		// each add copies the array, so elements are added at once
+		Object[] elements = new Object[size];
+		for (int i = 0; i < size; i++)
+			elements[i] = deserialize(is, objectStack);
+		s.addAll(Arrays.asList(elements));
+		return s;
+	}
+
+	private PriorityQueue<Object> deserializePriorityQueue(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+		// queue is created after its comparator, so its place in object stack
+		// is reserved
+		final int pos = objectStack.reserve();
+		Comparator comparator = (Comparator) deserialize(is, objectStack);
+		PriorityQueue<Object> s = new PriorityQueue<Object>(Math.max(1, size),
+				comparator);
+		objectStack.set(pos, s);
+		for (int i = 0; i < size; i++)
+			s.add(deserialize(is, objectStack));
+		return s;
+	}
+
+	private Object deserializeSingleton(int head, DataInput is,
 			FastArrayList objectStack) throws IOException,
 			ClassNotFoundException {
-		int size = LongPacker.unpackInt(is);
+		// collection is created after its element, so its place in object
+		// stack is reserved
+		final int pos = objectStack.reserve();
+		final Object element = deserialize(is, objectStack);
+		final Object ret;
+		if (head == SINGLETON_LIST)
+			ret = Collections.singletonList(element);
+		else if (head == SINGLETON_SET)
+			ret = Collections.singleton(element);
+		else
+			ret = Collections.singletonMap(element, deserialize(is,
+					objectStack));
+		objectStack.set(pos, ret);
+		return ret;
+	}
 
-		TreeMap<Object, Object> s = new TreeMap<Object, Object>();
-		objectStack.add(s);
-		Comparator comparator = (Comparator) deserialize(is, objectStack);
-		if (comparator != null)
-			s = new TreeMap<Object, Object>(comparator);
-		for (int i = 0; i < size; i++)
-			s.put(deserialize(is, objectStack), deserialize(is, objectStack));
-		return s;
+	private Object deserializeUnmodifiable(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		final int kind = is.readUnsignedByte();
+		final int pos = objectStack.reserve();
+		Comparator comparator = null;
+		if (kind == 'T' || kind == 'K')
+			comparator = (Comparator) deserialize(is, objectStack);
+		final int size = LongPacker.unpackInt(is);
+		// view is created first, backing collection is filled after
+		Collection c = null;
+		Map m = null;
+		final Object ret;
+		switch (kind) {
+		case 'L':
+			c = new ArrayList(size);
+			ret = Collections.unmodifiableList((List) c);
+			break;
+		case 'C':
+			c = new ArrayList(size);
+			ret = Collections.unmodifiableCollection(c);
+			break;
+		case 'S':
+			c = new LinkedHashSet(size);
+			ret = Collections.unmodifiableSet((Set) c);
+			break;
+		case 'T':
+			c = new TreeSet(comparator);
+			ret = Collections.unmodifiableSortedSet((SortedSet) c);
+			break;
+		case 'M':
+			m = new LinkedHashMap(size);
+			ret = Collections.unmodifiableMap(m);
+			break;
+		case 'K':
+			m = new TreeMap(comparator);
+			ret = Collections.unmodifiableSortedMap((SortedMap) m);
+			break;
+		default:
+			throw new InternalError("Unknown unmodifiable collection: " + kind);
+		}
+		objectStack.set(pos, ret);
+		for (int i = 0; i < size; i++) {
+			if (c != null)
+				c.add(deserialize(is, objectStack));
+			else
+				m.put(deserialize(is, objectStack), deserialize(is, objectStack));
+		}
+		return ret;
 	}
 
-	private HashMap<Object, Object> deserializeHashMap(DataInput is,
+	private Object deserializeImmutable(int head, DataInput is,
 			FastArrayList objectStack) throws IOException,
 			ClassNotFoundException {
-		int size = LongPacker.unpackInt(is);
+		final int size = LongPacker.unpackInt(is);
+		// collection is created after its elements, so its place in object
+		// stack is reserved
+		final int pos = objectStack.reserve();
+		final Object ret;
+		if (head == IMMUTABLE_MAP) {
+			Map.Entry[] entries = new Map.Entry[size];
+			for (int i = 0; i < size; i++) {
+				final Object key = deserialize(is, objectStack);
+				entries[i] = new AbstractMap.SimpleImmutableEntry(key,
+						deserialize(is, objectStack));
+			}
+			ret = invokeStatic(MAP_OF_ENTRIES, entries);
+		} else {
+			Object[] elements = new Object[size];
+			for (int i = 0; i < size; i++)
+				elements[i] = deserialize(is, objectStack);
+			ret = invokeStatic(head == IMMUTABLE_LIST ? LIST_OF : SET_OF,
+					elements);
+		}
+		objectStack.set(pos, ret);
+		return ret;
+	}
 
-		HashMap<Object, Object> s = new HashMap<Object, Object>(size);
+	private List<Object> deserializeArraysAsList(DataInput is,
+			FastArrayList objectStack) throws IOException,
+			ClassNotFoundException {
+		int size = LongPacker.unpackInt(is);
+		Object[] elements = new Object[size];
+		// list is view of the array, so it is filled after
+		List<Object> s = Arrays.asList(elements);
 		objectStack.add(s);
 		for (int i = 0; i < size; i++)
-			s.put(deserialize(is, objectStack), deserialize(is, objectStack));
+			elements[i] = deserialize(is, objectStack);
 		return s;
 	}
 
@@ -1258,14 +3168,795 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		return s;
 	}
 
+	/**
+	 * Writes header and data for values of one class. Codecs are looked up by
+	 * exact runtime class of value, so common types do not have to go through
+	 * long chain of instanceof checks.
+	 */
+	static abstract class Codec {
+
+		/**
+		 * True if values may contain other objects, which needs object stack
+		 * to handle cyclic references.
+		 */
+		final boolean needsObjectStack;
+
+		Codec(boolean needsObjectStack) {
+			this.needsObjectStack = needsObjectStack;
+		}
+
+		abstract void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException;
+	}
+
+	/**
+	 * Codec for collections which are written by serializeCollection
+	 */
+	static final class CollectionCodec extends Codec {
+		private final int header;
+
+		CollectionCodec(int header) {
+			super(true);
+			this.header = header;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			ser.serializeCollection(header, out, obj, objectStack);
+		}
+	}
+
+	/**
+	 * Codec for maps which are written by serializeMap
+	 */
+	static final class MapCodec extends Codec {
+		private final int header;
+
+		MapCodec(int header) {
+			super(true);
+			this.header = header;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			ser.serializeMap(header, out, obj, objectStack);
+		}
+	}
+
+	/**
+	 * Codec for collections and maps of other classes, which are written as
+	 * class id, comparator of sorted collection or capacity of bounded queue,
+	 * and elements or entries
+	 */
+	static final class GenericCodec extends Codec {
+		private final int header;
+		private final int classId;
+		// comparator() method of sorted collection
+		private final java.lang.reflect.Method comparator;
+		// class has constructor which takes capacity
+		private final boolean capacityConstructor;
+
+		GenericCodec(int header, int classId,
+				java.lang.reflect.Method comparator,
+				boolean capacityConstructor) {
+			super(true);
+			this.header = header;
+			this.classId = classId;
+			this.comparator = comparator;
+			this.capacityConstructor = capacityConstructor;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			if (obj instanceof BlockingQueue) {
+				BlockingQueue q = (BlockingQueue) obj;
+				final int remaining = q.remainingCapacity();
+				if (remaining != Integer.MAX_VALUE) {
+					if (!capacityConstructor)
+						throw new NotSerializableException(obj.getClass()
+								.getName()
+								+ " is bounded and has no capacity constructor");
+					out.write(BOUNDED_QUEUE);
+					LongPacker.packInt(out, classId);
+					LongPacker.packInt(out, q.size() + remaining);
+					ser.writeElements(out, q, objectStack);
+					return;
+				}
+			}
+			out.write(header);
+			LongPacker.packInt(out, classId);
+			if (comparator != null) {
+				try {
+					ser.serialize(out, comparator.invoke(obj), objectStack);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException("Cannot get comparator", e);
+				}
+			}
+			if (header == MAP || header == SORTED_MAP)
+				ser.writeEntries(out, (Map) obj, objectStack);
+			else
+				ser.writeElements(out, (Collection) obj, objectStack);
+		}
+	}
+
+	/**
+	 * Codec for classes with serializer registered by user
+	 */
+	static final class CustomCodec extends Codec {
+		private final int id;
+		private final Serializer serializer;
+
+		CustomCodec(int id, Serializer serializer) {
+			super(true);
+			this.id = id;
+			this.serializer = serializer;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			out.write(CUSTOM);
+			LongPacker.packInt(out, id);
+			serializer.serialize(out, obj);
+		}
+	}
+
+	/** arrays of non-primitive types */
+	static final Codec OBJECT_ARRAY_CODEC = new Codec(true) {
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			ser.writeObjectArray(out, (Object[]) obj, objectStack);
+		}
+	};
+
+	/**
+	 * Writes EnumSet as class id of enum and bitmap of ordinals. Set of enum
+	 * without constants is written field by field, since its type can not be
+	 * found without access to JDK internals.
+	 */
+	static final Codec ENUM_SET_CODEC = new Codec(true) {
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			EnumSet set = (EnumSet) obj;
+			int classId = ser.enumClassId(set.isEmpty() ? EnumSet
+					.complementOf(set) : set);
+			if (classId < 0) {
+				out.write(OBJECT);
+				ser.writeObject(out, obj, objectStack);
+				return;
+			}
+			out.write(ENUM_SET);
+			LongPacker.packInt(out, classId);
+			writeOrdinals(out, set);
+		}
+	};
+
+	/**
+	 * Classes without special handling, their fields are written one by one.
+	 * Codec remembers class id, so it does not have to be looked up for each
+	 * object.
+	 */
+	static final class NormalCodec extends Codec {
+		final int classId;
+
+		NormalCodec(int classId) {
+			super(true);
+			this.classId = classId;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			out.write(OBJECT);
+			ser.writeObject(out, obj, classId, objectStack);
+		}
+	}
+
+	/** Writes enum constant as class id of enum and ordinal */
+	static final class EnumCodec extends Codec {
+		final int classId;
+
+		EnumCodec(int classId) {
+			super(false);
+			this.classId = classId;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			out.write(ENUM);
+			LongPacker.packInt(out, classId);
+			LongPacker.packInt(out, ((Enum) obj).ordinal());
+		}
+	}
+
+	/**
+	 * Codec for value written as single header byte
+	 */
+	static final class HeaderCodec extends Codec {
+		private final int header;
+
+		HeaderCodec(int header) {
+			super(false);
+			this.header = header;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			out.write(header);
+		}
+	}
+
+	/**
+	 * Codec for unmodifiable views from Collections. Elements are copied, so
+	 * the view is read back over new collection of the same kind.
+	 */
+	static final class UnmodifiableCodec extends Codec {
+		private final char kind;
+
+		UnmodifiableCodec(char kind) {
+			super(true);
+			this.kind = kind;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			out.write(UNMODIFIABLE);
+			out.write(kind);
+			if (kind == 'T')
+				ser.serialize(out, ((SortedSet) obj).comparator(), objectStack);
+			else if (kind == 'K')
+				ser.serialize(out, ((SortedMap) obj).comparator(), objectStack);
+			if (obj instanceof Map)
+				ser.writeEntries(out, (Map) obj, objectStack);
+			else
+				ser.writeElements(out, (Collection) obj, objectStack);
+		}
+	}
+
+	static final Codec UNMODIFIABLE_LIST_CODEC = new UnmodifiableCodec('L');
+
+	/**
+	 * Codec for collections created by List.of, Set.of and Map.of
+	 */
+	static final class ImmutableCodec extends Codec {
+		private final int header;
+
+		ImmutableCodec(int header) {
+			super(true);
+			this.header = header;
+		}
+
+		void write(Serialization ser, DataOutput out, Object obj,
+				FastArrayList objectStack) throws IOException {
+			if (header == IMMUTABLE_MAP) {
+				out.write(header);
+				ser.writeEntries(out, (Map) obj, objectStack);
+				return;
+			}
+			// Stream.toList() creates the same list class with nulls,
+			// which List.of does not accept
+			for (Object o : (Collection) obj) {
+				if (o == null) {
+					UNMODIFIABLE_LIST_CODEC.write(ser, out, obj, objectStack);
+					return;
+				}
+			}
+			out.write(header);
+			ser.writeElements(out, (Collection) obj, objectStack);
+		}
+	}
+
+	/** List.of, Set.of and Map.ofEntries, null before Java 9 */
+	static final java.lang.reflect.Method LIST_OF = method(List.class, "of",
+			Object[].class);
+	static final java.lang.reflect.Method SET_OF = method(Set.class, "of",
+			Object[].class);
+	static final java.lang.reflect.Method MAP_OF_ENTRIES = method(Map.class,
+			"ofEntries", Map.Entry[].class);
+
+	/**
+	 * Locale.toLanguageTag and forLanguageTag, null before Java 7. Older
+	 * locales do not have script and extensions, so they are always written
+	 * as language, country and variant.
+	 */
+	static final java.lang.reflect.Method LOCALE_TO_LANGUAGE_TAG = method(
+			Locale.class, "toLanguageTag");
+	static final java.lang.reflect.Method LOCALE_FOR_LANGUAGE_TAG = method(
+			Locale.class, "forLanguageTag", String.class);
+
+	private static java.lang.reflect.Method method(Class clazz, String name,
+			Class... parameterTypes) {
+		try {
+			return clazz.getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Object invokeStatic(java.lang.reflect.Method method,
+			Object[] args) {
+		return invoke(method, null, new Object[] { args });
+	}
+
+	private static Object invoke(java.lang.reflect.Method method, Object obj,
+			Object... args) {
+		try {
+			return method.invoke(obj, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (java.lang.reflect.InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	static final Map<Class, Codec> BUILTIN_CODECS = new HashMap<Class, Codec>();
+
+	static {
+		BUILTIN_CODECS.put(Boolean.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(((Boolean) obj).booleanValue() ? BOOLEAN_TRUE
+						: BOOLEAN_FALSE);
+			}
+		});
+		BUILTIN_CODECS.put(Integer.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeInteger(out, (Integer) obj);
+			}
+		});
+		BUILTIN_CODECS.put(Double.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeDouble(out, (Double) obj);
+			}
+		});
+		BUILTIN_CODECS.put(Float.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeFloat(out, (Float) obj);
+			}
+		});
+		BUILTIN_CODECS.put(BigInteger.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				BigInteger i = (BigInteger) obj;
+				if (i.bitLength() < 64) {
+					out.write(BIGINTEGER_LONG);
+					LongPacker.packLongZigZag(out, i.longValue());
+					return;
+				}
+				out.write(BIGINTEGER);
+				ser.serializeByteArrayInt(out, i.toByteArray());
+			}
+		});
+		BUILTIN_CODECS.put(BigDecimal.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				BigDecimal d = (BigDecimal) obj;
+				BigInteger unscaled = d.unscaledValue();
+				if (unscaled.bitLength() < 64) {
+					out.write(BIGDECIMAL_LONG);
+					LongPacker.packLongZigZag(out, unscaled.longValue());
+					LongPacker.packIntZigZag(out, d.scale());
+					return;
+				}
+				if (d.scale() < 0) {
+					out.write(BIGDECIMAL_SIGNED_SCALE);
+					ser.serializeByteArrayInt(out, unscaled.toByteArray());
+					LongPacker.packIntZigZag(out, d.scale());
+					return;
+				}
+				out.write(BIGDECIMAL);
+				ser.serializeByteArrayInt(out, unscaled.toByteArray());
+				LongPacker.packInt(out, d.scale());
+			}
+		});
+		BUILTIN_CODECS.put(Long.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeLong(out, (Long) obj);
+			}
+		});
+		BUILTIN_CODECS.put(Short.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeShort(out, (Short) obj);
+			}
+		});
+		BUILTIN_CODECS.put(Byte.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeByte(out, (Byte) obj);
+			}
+		});
+		BUILTIN_CODECS.put(Character.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(CHAR_PACKED);
+				LongPacker.packInt(out, (Character) obj);
+			}
+		});
+		BUILTIN_CODECS.put(String.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeString(out, (String) obj);
+			}
+		});
+		BUILTIN_CODECS.put(Class.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(CLASS);
+				ser.serialize(out, ((Class) obj).getName());
+			}
+		});
+		BUILTIN_CODECS.put(int[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeIntArray(out, (int[]) obj);
+			}
+		});
+		BUILTIN_CODECS.put(long[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeLongArray(out, (long[]) obj);
+			}
+		});
+		BUILTIN_CODECS.put(short[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(SHORT_ARRAY);
+				short[] a = (short[]) obj;
+				LongPacker.packInt(out, a.length);
+				for (short s : a)
+					out.writeShort(s);
+			}
+		});
+		BUILTIN_CODECS.put(boolean[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(BOOLEAN_ARRAY_PACKED);
+				boolean[] a = (boolean[]) obj;
+				LongPacker.packInt(out, a.length);
+				writeBooleans(out, a);
+			}
+		});
+		BUILTIN_CODECS.put(double[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				double[] a = (double[]) obj;
+				// size of XOR encoding, counted once for both decisions
+				final long xorBits = ser.floatCompression ? BitPacker
+						.packXor(null, a) : Long.MAX_VALUE;
+				if (a.length >= SPARSE_MIN_LENGTH) {
+					int runs = 0;
+					int nonZero = 0;
+					long prev = 0;
+					for (int i = 0; i < a.length; i++) {
+						final long bits = Double.doubleToLongBits(a[i]);
+						if (bits != 0)
+							nonZero++;
+						if (i == 0 || bits != prev)
+							runs++;
+						prev = bits;
+					}
+					long plainSize = 8L * a.length;
+					if (ser.floatCompression)
+						plainSize = Math.min(plainSize, (xorBits + 7) / 8);
+					if (writeRunsOrSparse(out, a, 'D', a.length, runs,
+							nonZero, 8, plainSize))
+						return;
+				}
+				if (xorBits < 64L * a.length) {
+					out.write(DOUBLE_ARRAY_XOR);
+					LongPacker.packInt(out, a.length);
+					BitPacker.packXor(out, a);
+					return;
+				}
+				out.write(DOUBLE_ARRAY);
+				LongPacker.packInt(out, a.length);
+				for (double s : a)
+					out.writeDouble(s);
+			}
+		});
+		BUILTIN_CODECS.put(float[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				float[] a = (float[]) obj;
+				if (ser.floatCompression
+						&& BitPacker.packXor(null, a) < 32L * a.length) {
+					out.write(FLOAT_ARRAY_XOR);
+					LongPacker.packInt(out, a.length);
+					BitPacker.packXor(out, a);
+					return;
+				}
+				out.write(FLOAT_ARRAY);
+				LongPacker.packInt(out, a.length);
+				for (float s : a)
+					out.writeFloat(s);
+			}
+		});
+		BUILTIN_CODECS.put(char[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				char[] a = (char[]) obj;
+				final boolean latin1 = isLatin1(a);
+				out.write(latin1 ? CHAR_ARRAY_LATIN1 : CHAR_ARRAY_UTF8);
+				LongPacker.packInt(out, a.length);
+				writeChars(out, a, latin1);
+			}
+		});
+		BUILTIN_CODECS.put(byte[].class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				byte[] a = (byte[]) obj;
+				if (a.length >= SPARSE_MIN_LENGTH) {
+					int runs = 0;
+					int nonZero = 0;
+					for (int i = 0; i < a.length; i++) {
+						if (a[i] != 0)
+							nonZero++;
+						if (i == 0 || a[i] != a[i - 1])
+							runs++;
+					}
+					if (writeRunsOrSparse(out, a, 'B', a.length, runs,
+							nonZero, 1, a.length))
+						return;
+				}
+				out.write(ARRAY_BYTE_INT);
+				ser.serializeByteArrayInt(out, a);
+			}
+		});
+		BUILTIN_CODECS.put(EnumMap.class, new Codec(true) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				EnumMap<?, ?> map = (EnumMap) obj;
+				int classId = ser.enumClassId((Collection) map.keySet());
+				if (classId < 0)
+					classId = ser.enumClassId(enumMapKeyType(map));
+				out.write(ENUM_MAP);
+				LongPacker.packInt(out, classId);
+				writeOrdinals(out, (Collection) map.keySet());
+				for (Object value : map.values())
+					ser.serialize(out, value, objectStack);
+			}
+		});
+		BUILTIN_CODECS.put(Date.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				final long time = ((Date) obj).getTime() - ser.dateEpoch;
+				// whole seconds are written divided by 1000, lowest bit
+				// tells if value is in seconds or milliseconds
+				if (time % 1000 == 0) {
+					out.write(DATE_PACKED);
+					LongPacker.packLongZigZag(out, (time / 1000) << 1);
+				} else if ((time << 1) >> 1 == time) {
+					out.write(DATE_PACKED);
+					LongPacker.packLongZigZag(out, (time << 1) | 1);
+				} else {
+					out.write(DATE);
+					out.writeLong(time + ser.dateEpoch);
+				}
+			}
+		});
+
+		BUILTIN_CODECS.put(ArrayList.class, new Codec(true) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeArrayList(out, (ArrayList) obj, objectStack);
+			}
+		});
+		BUILTIN_CODECS.put(java.util.LinkedList.class, new CollectionCodec(
+				LINKEDLIST));
+		BUILTIN_CODECS.put(Vector.class, new CollectionCodec(VECTOR));
+		BUILTIN_CODECS.put(TreeSet.class, new Codec(true) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeTreeSet(out, (TreeSet) obj, objectStack);
+			}
+		});
+		BUILTIN_CODECS.put(HashSet.class, new CollectionCodec(HASHSET));
+		BUILTIN_CODECS.put(LinkedHashSet.class, new CollectionCodec(
+				LINKEDHASHSET));
+		BUILTIN_CODECS.put(TreeMap.class, new Codec(true) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				ser.writeTreeMap(out, (TreeMap) obj, objectStack);
+			}
+		});
+		BUILTIN_CODECS.put(HashMap.class, new MapCodec(HASHMAP));
+		BUILTIN_CODECS.put(IdentityHashMap.class, new MapCodec(
+				IDENTITYHASHMAP));
+		BUILTIN_CODECS.put(LinkedHashMap.class, new MapCodec(LINKEDHASHMAP));
+		BUILTIN_CODECS.put(Hashtable.class, new MapCodec(HASHTABLE));
+		BUILTIN_CODECS.put(Properties.class, new MapCodec(PROPERTIES));
+		BUILTIN_CODECS.put(ConcurrentHashMap.class, new MapCodec(
+				CONCURRENT_HASHMAP));
+		BUILTIN_CODECS.put(ArrayDeque.class, new CollectionCodec(ARRAY_DEQUE));
+		BUILTIN_CODECS.put(CopyOnWriteArrayList.class, new CollectionCodec(
+				COPY_ON_WRITE_ARRAYLIST));
+		BUILTIN_CODECS.put(PriorityQueue.class, new Codec(true) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				PriorityQueue q = (PriorityQueue) obj;
+				out.write(PRIORITY_QUEUE);
+				LongPacker.packInt(out, q.size());
+				ser.serialize(out, q.comparator(), objectStack);
+				for (Object o : q)
+					ser.serialize(out, o, objectStack);
+			}
+		});
+
+		BUILTIN_CODECS.put(UUID.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				UUID uuid = (UUID) obj;
+				out.write(SerializationHeader.UUID);
+				out.writeLong(uuid.getMostSignificantBits());
+				out.writeLong(uuid.getLeastSignificantBits());
+			}
+		});
+		BUILTIN_CODECS.put(BitSet.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(BITSET);
+				writeBits(out, (BitSet) obj);
+			}
+		});
+		BUILTIN_CODECS.put(AtomicLong.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(ATOMIC_LONG);
+				LongPacker.packLongZigZag(out, ((AtomicLong) obj).get());
+			}
+		});
+		BUILTIN_CODECS.put(StringBuilder.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(STRING_BUILDER);
+				serializeString(out, obj.toString());
+			}
+		});
+		BUILTIN_CODECS.put(java.net.URI.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				out.write(URI);
+				serializeString(out, obj.toString());
+			}
+		});
+		BUILTIN_CODECS.put(Locale.class, new Codec(false) {
+			void write(Serialization ser, DataOutput out, Object obj,
+					FastArrayList objectStack) throws IOException {
+				Locale l = (Locale) obj;
+				// locales with script or extensions are not equal to locale
+				// created from language, country and variant, except
+				// extensions which Locale constructor derives from variant
+				if (LOCALE_TO_LANGUAGE_TAG == null
+						|| new Locale(l.getLanguage(), l.getCountry(), l
+								.getVariant()).equals(l)) {
+					out.write(LOCALE);
+					serializeString(out, l.getLanguage());
+					serializeString(out, l.getCountry());
+					serializeString(out, l.getVariant());
+				} else {
+					out.write(LOCALE_TAG);
+					serializeString(out, (String) invoke(
+							LOCALE_TO_LANGUAGE_TAG, l));
+				}
+			}
+		});
+
+		BUILTIN_CODECS.put(Collections.emptyList().getClass(),
+				new HeaderCodec(EMPTY_LIST));
+		BUILTIN_CODECS.put(Collections.emptySet().getClass(),
+				new HeaderCodec(EMPTY_SET));
+		BUILTIN_CODECS.put(Collections.emptyMap().getClass(),
+				new HeaderCodec(EMPTY_MAP));
+		BUILTIN_CODECS.put(Collections.singletonList(null).getClass(),
+				new Codec(true) {
+					void write(Serialization ser, DataOutput out, Object obj,
+							FastArrayList objectStack) throws IOException {
+						out.write(SINGLETON_LIST);
+						ser.serialize(out, ((List) obj).get(0), objectStack);
+					}
+				});
+		BUILTIN_CODECS.put(Collections.singleton(null).getClass(),
+				new Codec(true) {
+					void write(Serialization ser, DataOutput out, Object obj,
+							FastArrayList objectStack) throws IOException {
+						out.write(SINGLETON_SET);
+						ser.serialize(out, ((Set) obj).iterator().next(),
+								objectStack);
+					}
+				});
+		BUILTIN_CODECS.put(Collections.singletonMap(null, null).getClass(),
+				new Codec(true) {
+					void write(Serialization ser, DataOutput out, Object obj,
+							FastArrayList objectStack) throws IOException {
+						Map.Entry e = (Map.Entry) ((Map) obj).entrySet()
+								.iterator().next();
+						out.write(SINGLETON_MAP);
+						ser.serialize(out, e.getKey(), objectStack);
+						ser.serialize(out, e.getValue(), objectStack);
+					}
+				});
+		BUILTIN_CODECS.put(Collections.unmodifiableList(new ArrayList())
+				.getClass(), UNMODIFIABLE_LIST_CODEC);
+		BUILTIN_CODECS.put(Collections.unmodifiableList(
+				new java.util.LinkedList()).getClass(), UNMODIFIABLE_LIST_CODEC);
+		BUILTIN_CODECS.put(Collections.unmodifiableCollection(new ArrayList())
+				.getClass(), new UnmodifiableCodec('C'));
+		BUILTIN_CODECS.put(Collections.unmodifiableSet(new HashSet())
+				.getClass(), new UnmodifiableCodec('S'));
+		BUILTIN_CODECS.put(Collections.unmodifiableSortedSet(new TreeSet())
+				.getClass(), new UnmodifiableCodec('T'));
+		BUILTIN_CODECS.put(Collections.unmodifiableMap(new HashMap())
+				.getClass(), new UnmodifiableCodec('M'));
+		BUILTIN_CODECS.put(Collections.unmodifiableSortedMap(new TreeMap())
+				.getClass(), new UnmodifiableCodec('K'));
+		BUILTIN_CODECS.put(Arrays.asList().getClass(),
+				new CollectionCodec(ARRAYS_AS_LIST));
+		if (LIST_OF != null) {
+			// implementation classes of immutable collections depend on size
+			for (int size : new int[] { 0, 1, 3 }) {
+				Object[] elements = new Object[size];
+				Map.Entry[] entries = new Map.Entry[size];
+				for (int i = 0; i < size; i++) {
+					elements[i] = i;
+					entries[i] = new AbstractMap.SimpleImmutableEntry(i, i);
+				}
+				List list = (List) invokeStatic(LIST_OF, elements);
+				BUILTIN_CODECS.put(list.getClass(), new ImmutableCodec(
+						IMMUTABLE_LIST));
+				if (size > 1)
+					BUILTIN_CODECS.put(list.subList(0, 1).getClass(),
+							new ImmutableCodec(IMMUTABLE_LIST));
+				BUILTIN_CODECS.put(invokeStatic(SET_OF, elements).getClass(),
+						new ImmutableCodec(IMMUTABLE_SET));
+				BUILTIN_CODECS.put(invokeStatic(MAP_OF_ENTRIES, entries)
+						.getClass(), new ImmutableCodec(IMMUTABLE_MAP));
+			}
+		}
+		try {
+			Class.forName("java.time.Instant");
+			Java8Codecs.register(BUILTIN_CODECS);
+		} catch (ClassNotFoundException e) {
+			// java.time and Optional are not available before Java 8
+		}
+	}
+
+	/** object stack used when reference tracking is disabled, it stays empty */
+	static final FastArrayList NO_REFERENCES = new FastArrayList(false);
+
 	/**
 	 * Utility class similar to ArrayList, but with fast identity search.
 	 */
 	static class FastArrayList<K> {
 
+		/** lists up to this size are searched linearly */
+		static final int INDEX_THRESHOLD = 32;
+
+		/** if false, list ignores added objects */
+		final boolean tracking;
+
 		private int size = 0;
 		private K[] elementData = (K[]) new Object[8];
 
+		/**
+		 * Open addressing identity hash table over elementData, built on
+		 * first search in list larger than INDEX_THRESHOLD. Slot contains
+		 * index of element plus one, zero is empty slot.
+		 */
+		private int[] index;
+
+		FastArrayList() {
+			this(true);
+		}
+
+		FastArrayList(boolean tracking) {
+			this.tracking = tracking;
+		}
+
 		K get(int index) {
 			if (index >= size)
 				throw new IndexOutOfBoundsException();
@@ -1273,6 +3964,8 @@ public class Serialization extends SerialClassInfo implements Serializer {
 		}
 
 		void add(K o) {
+			if (!tracking)
+				return;
 			if (elementData.length == size) {
 				// grow array if necessary
 				elementData = Arrays
@@ -1281,28 +3974,123 @@ public class Serialization extends SerialClassInfo implements Serializer {
 
 			elementData[size] = o;
 			size++;
+
+			if (index != null) {
+				if (size * 2 > index.length)
+					buildIndex(index.length * 2);
+				else
+					indexPut(size - 1);
+			}
+		}
+
+		/** placeholder of object in reserved position */
+		static final Object RESERVED = new Object();
+
+		/**
+		 * Reserves position for object which is created after its contents
+		 * are read, returns the position. Object must be stored there by set.
+		 */
+		int reserve() {
+			add((K) RESERVED);
+			return size - 1;
+		}
+
+		/**
+		 * Replaces element at given position. Used by reader when position
+		 * in stack is reserved before object is created.
+		 */
+		void set(int pos, K o) {
+			if (!tracking)
+				return;
+			if (pos >= size)
+				throw new IndexOutOfBoundsException();
+			elementData[pos] = o;
+			if (index != null)
+				buildIndex(index.length);
 		}
 
 		int size() {
 			return size;
 		}
 
+		/**
+		 * Removes all elements, so list can be reused. Very large arrays are
+		 * released.
+		 */
+		void clear() {
+			if (elementData.length > 1 << 16) {
+				elementData = (K[]) new Object[8];
+				index = null;
+			} else {
+				Arrays.fill(elementData, 0, size, null);
+				if (index != null)
+					Arrays.fill(index, 0);
+			}
+			size = 0;
+		}
+
 		/**
 		 * This method is reason why ArrayList is not used. Search an item in
 		 * list and returns its index. It uses identity rather than 'equalsTo'
-		 * One could argue that TreeMap should be used instead, but we do not
-		 * expect large object trees. This search is VERY FAST compared to Maps,
-		 * it does not allocate new instances or uses method calls.
+		 * Small lists are scanned, this does not allocate new instances or
+		 * uses method calls. Once list grows, identity hash table is used so
+		 * large object trees are not quadratic.
 		 * 
 		 * @param obj
 		 * @return index of object in list or -1 if not found
 		 */
 		int identityIndexOf(Object obj) {
-			for (int i = size - 1; i >= 0; i--) {
-				if (obj == elementData[i])
-					return i;
+			if (index == null) {
+				if (size <= INDEX_THRESHOLD) {
+					for (int i = size - 1; i >= 0; i--) {
+						if (obj == elementData[i])
+							return i;
+					}
+					return -1;
+				}
+				buildIndex(Integer.highestOneBit(size) * 4);
 			}
-			return -1;
+
+			final int mask = index.length - 1;
+			int i = hash(obj) & mask;
+			for (;;) {
+				int slot = index[i];
+				if (slot == 0)
+					return -1;
+				if (elementData[slot - 1] == obj)
+					return slot - 1;
+				i = (i + 1) & mask;
+			}
+		}
+
+		private void buildIndex(int capacity) {
+			if (index == null || index.length != capacity)
+				index = new int[capacity];
+			else
+				Arrays.fill(index, 0);
+			for (int i = 0; i < size; i++)
+				indexPut(i);
+		}
+
+		private void indexPut(int pos) {
+			final Object obj = elementData[pos];
+			final int mask = index.length - 1;
+			int i = hash(obj) & mask;
+			for (;;) {
+				int slot = index[i];
+				// the same object added twice, the last position wins as in
+				// linear search
+				if (slot == 0 || elementData[slot - 1] == obj) {
+					index[i] = pos + 1;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		private static int hash(Object obj) {
+			int h = System.identityHashCode(obj);
+			return h ^ (h >>> 16);
 		}
 
 	}
@@ -87,9 +87,85 @@ final class SerializationHeader {
 	// special cases for BTree values which stores references
 	final static int ARRAY_OBJECT_PACKED_LONG = 74;
 	final static int ARRAYLIST_PACKED_LONG = 75;
+	/**
+	 * object written by serializer registered with Serialization.register
+	 */
+	final static int CUSTOM = 76;
+	/**
+	 * value which follows was written without reference tracking
+	 */
+	final static int TREE = 77;
+	/** string with all chars bellow 256, written one byte per char */
+	final static int STRING_LATIN1 = 78;
+	/** string written in UTF-8, surrogates are encoded separately */
+	final static int STRING_UTF8 = 79;
+	/**
+	 * value which follows is written with equal values deduplicated, next
+	 * byte contains flags of deduplicated types
+	 */
+	final static int DEDUP = 80;
+	/** reference to equal value written before, followed by its index */
+	final static int VALUE_REF = 81;
+	/** char array with all chars bellow 256, written one byte per char */
+	final static int CHAR_ARRAY_LATIN1 = 82;
+	/** char array written in UTF-8, surrogates are encoded separately */
+	final static int CHAR_ARRAY_UTF8 = 83;
+	/** boolean array packed 8 elements per byte */
+	final static int BOOLEAN_ARRAY_PACKED = 84;
+	/** char written as packed int */
+	final static int CHAR_PACKED = 85;
+	/** int array with ZigZag packed elements, used if some are negative */
+	final static int ARRAY_INT_PACKED_SIGNED = 86;
+	/** long array with ZigZag packed elements, used if some are negative */
+	final static int ARRAY_LONG_PACKED_SIGNED = 87;
+	/**
+	 * int array bit packed as differences from minimum, followed by size,
+	 * minimum and bit width
+	 */
+	final static int ARRAY_INT_FOR = 88;
+	/**
+	 * sorted int array bit packed as differences between neighbour elements,
+	 * followed by size, first element and bit width
+	 */
+	final static int ARRAY_INT_DELTA = 89;
+	/** long array written as ARRAY_INT_FOR */
+	final static int ARRAY_LONG_FOR = 90;
+	/** long array written as ARRAY_INT_DELTA */
+	final static int ARRAY_LONG_DELTA = 91;
+	/** double array with each element XORed with previous one, bit packed */
+	final static int DOUBLE_ARRAY_XOR = 92;
+	/** float array written as DOUBLE_ARRAY_XOR */
+	final static int FLOAT_ARRAY_XOR = 93;
+	/**
+	 * int, long, double or byte array written as runs of equal elements,
+	 * followed by element type, size, number of runs and runs
+	 */
+	final static int ARRAY_RUNS = 94;
+	/**
+	 * int, long, double or byte array written as non-zero elements, followed
+	 * by element type, size, number of elements and index gaps with elements
+	 */
+	final static int ARRAY_SPARSE = 95;
+	/** enum constant, followed by class id of enum and ordinal */
+	final static int ENUM = 96;
+	/** EnumSet, followed by class id of enum and bitmap of ordinals */
+	final static int ENUM_SET = 97;
+	/**
+	 * EnumMap, followed by class id of enum, bitmap of key ordinals and
+	 * values
+	 */
+	final static int ENUM_MAP = 98;
+	/** BigInteger which fits into long, written as ZigZag packed long */
+	final static int BIGINTEGER_LONG = 99;
+	/**
+	 * BigDecimal with unscaled value which fits into long, written as ZigZag
+	 * packed unscaled value and scale
+	 */
+	final static int BIGDECIMAL_LONG = 100;
 
 	final static int STRING_EMPTY = 101;
 	final static int NOTUSED_STRING_255 = 102;
+	/** old string format with packed int per char, only read */
 	final static int STRING = 103;
 	final static int NOTUSED_ARRAYLIST_255 = 104;
 	final static int ARRAYLIST = 105;
@@ -120,6 +196,67 @@ final class SerializationHeader {
 	final static int CLASS = 126;
 
 	final static int DATE = 127;
+	/**
+	 * date relative to epoch, ZigZag packed. Lowest bit of value is 0 for
+	 * seconds and 1 for milliseconds.
+	 */
+	final static int DATE_PACKED = 130;
+	/** BigDecimal with negative scale, scale is ZigZag packed */
+	final static int BIGDECIMAL_SIGNED_SCALE = 131;
+	/** UUID as two longs */
+	final static int UUID = 132;
+	/** BitSet as packed length in bits and bitmap bytes */
+	final static int BITSET = 133;
+	/** AtomicLong, ZigZag packed value */
+	final static int ATOMIC_LONG = 134;
+	/** StringBuilder, chars are written as string */
+	final static int STRING_BUILDER = 135;
+	/** URI as string */
+	final static int URI = 136;
+	/** Locale as language, country and variant strings */
+	final static int LOCALE = 137;
+	/** Locale with script or extensions as language tag */
+	final static int LOCALE_TAG = 138;
+	/** java.time.Instant, ZigZag packed seconds and packed nanos */
+	final static int INSTANT = 139;
+	/** java.time.LocalDate, ZigZag packed epoch day */
+	final static int LOCAL_DATE = 140;
+	/** java.time.LocalDateTime, epoch day, second of day and nanos */
+	final static int LOCAL_DATE_TIME = 141;
+	/** java.time.Duration, ZigZag packed seconds and packed nanos */
+	final static int DURATION = 142;
+	/** java.util.Optional followed by its value or NULL */
+	final static int OPTIONAL = 143;
+	/** Collection of any class, class id, size and elements */
+	final static int COLLECTION = 144;
+	/** Map of any class, class id, size and entries */
+	final static int MAP = 145;
+	final static int CONCURRENT_HASHMAP = 146;
+	final static int ARRAY_DEQUE = 147;
+	final static int COPY_ON_WRITE_ARRAYLIST = 148;
+	/** PriorityQueue, size, comparator and elements */
+	final static int PRIORITY_QUEUE = 149;
+	/** Collections.emptyList() */
+	final static int EMPTY_LIST = 150;
+	/** Collections.emptySet() */
+	final static int EMPTY_SET = 151;
+	/** Collections.emptyMap() */
+	final static int EMPTY_MAP = 152;
+	/** Collections.singletonList(), followed by element */
+	final static int SINGLETON_LIST = 153;
+	/** Collections.singleton(), followed by element */
+	final static int SINGLETON_SET = 154;
+	/** Collections.singletonMap(), followed by key and value */
+	final static int SINGLETON_MAP = 155;
+	/**
+	 * Unmodifiable view from Collections, kind of view, comparator of sorted
+	 * views, size and elements
+	 */
+	final static int UNMODIFIABLE = 156;
+	/** List.of(), size and elements */
+	final static int IMMUTABLE_LIST = 157;
+	/** Set.of(), size and elements */
+	final static int IMMUTABLE_SET = 158;
 
 	final static int NOTUSED_IDENTITYHASHMAP = 128;
 	final static int IDENTITYHASHMAP = 129;
@@ -137,6 +274,36 @@ final class SerializationHeader {
 	 * used for reference to already serialized object in object graph
 	 */
 	static final int OBJECT_STACK = 166;
+	/** Map.of(), size, keys and values */
+	final static int IMMUTABLE_MAP = 167;
+	/** Arrays.asList(), size and elements */
+	final static int ARRAYS_AS_LIST = 168;
+	/**
+	 * Object array or list with elements of single class, header of array
+	 * or list, size, [component class id], element type and elements without
+	 * headers
+	 */
+	final static int HOMOGENEOUS = 169;
+	/**
+	 * Object array, list or set of boxed numbers of single type, header of
+	 * array or collection, size, [component class id], type of numbers, count
+	 * of nulls, [bitmap of nulls] and primitive array of other elements
+	 */
+	final static int PACKED_NUMBERS = 170;
+	/**
+	 * Object written field by field, class id with flags of object header and
+	 * fields; replaces NORMAL, which is still read
+	 */
+	final static int OBJECT = 171;
 	static final int JAVA_SERIALIZATION = 172;
+	/**
+	 * Collection sorted by comparator, class id, comparator, size and
+	 * elements
+	 */
+	final static int SORTED_COLLECTION = 173;
+	/** Map sorted by comparator, class id, comparator, size, keys and values */
+	final static int SORTED_MAP = 174;
+	/** Bounded blocking queue, class id, capacity, size and elements */
+	final static int BOUNDED_QUEUE = 175;
 
 }
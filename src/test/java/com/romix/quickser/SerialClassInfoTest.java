@@ -99,6 +99,48 @@ public class SerialClassInfoTest extends TestCaseWithTestFile {
 		}
 	}
 
+	static class PrimitiveBean implements Serializable {
+		int i = Integer.MIN_VALUE;
+		long l = -300L;
+		double d = 0.5d;
+		float f = -1f;
+		short s = Short.MIN_VALUE;
+		byte b = 100;
+		char c = '\u20ac';
+		boolean z = true;
+	}
+
+	static final class FinalBean implements Serializable {
+		String name;
+		String sameName;
+		String nullName;
+		FinalBean next;
+		FinalBean self;
+		long min = Long.MIN_VALUE;
+	}
+
+	static class SparseBean implements Serializable {
+		String f1, f2, f3, f4, f5, f6, f7, f8, f9, f10;
+		Object o1, o2, o3, o4, o5, o6, o7, o8, o9, o10;
+		int i1, i2, i3, i4, i5;
+		double d1, d2, d3, d4, d5;
+	}
+
+	enum Color {
+		RED, GREEN {
+			public String toString() {
+				return "green";
+			}
+		},
+		BLUE
+	}
+
+	static class EnumBean implements Serializable {
+		Color color;
+		Color other;
+		Object any;
+	}
+
 	SerialClassInfo s;
 
 	public void setUp() throws IOException {
@@ -190,6 +232,110 @@ public class SerialClassInfoTest extends TestCaseWithTestFile {
 		assertEquals(serialize(b), b);
 	}
 
+	public void testPrimitiveFields() throws Exception {
+		PrimitiveBean p = serialize(new PrimitiveBean());
+		assertEquals(Integer.MIN_VALUE, p.i);
+		assertEquals(-300L, p.l);
+		assertEquals(0.5d, p.d);
+		assertEquals(-1f, p.f);
+		assertEquals(Short.MIN_VALUE, p.s);
+		assertEquals(100, p.b);
+		assertEquals('\u20ac', p.c);
+		assertTrue(p.z);
+	}
+
+	public void testFinalFields() throws Exception {
+		FinalBean b = new FinalBean();
+		b.name = "final field";
+		b.sameName = b.name;
+		b.next = new FinalBean();
+		b.next.name = "next";
+		b.self = b;
+
+		FinalBean bx = serialize(b);
+		assertEquals("final field", bx.name);
+		assertTrue(bx.name == bx.sameName);
+		assertNull(bx.nullName);
+		assertTrue(bx == bx.self);
+		assertEquals("next", bx.next.name);
+		assertNull(bx.next.next);
+		assertEquals(Long.MIN_VALUE, bx.next.min);
+	}
+
+	public void testFieldIdsWrittenIfLayoutDiffers() throws Exception {
+		ArrayList<SerialClassInfo.ClassInfo> registry = new ArrayList<SerialClassInfo.ClassInfo>();
+		Serialization s2 = new Serialization(registry);
+		byte[] positional = s2.serialize(b);
+
+		// pretend that class changed since it was registered
+		SerialClassInfo.ClassInfo ci = registry.get(s2.getClassId(Bean1.class));
+		ci.setWritePlan(ci.getWriteFields(), ci.getWriteFieldIds(), false);
+		byte[] buf = s2.serialize(b);
+		// field count and one id per field
+		assertEquals(positional.length + 1 + ci.getFields().size(), buf.length);
+		assertEquals(b, s2.deserialize(buf));
+		assertEquals(b, s2.deserialize(positional));
+	}
+
+	public void testNormalFormatStillRead() throws Exception {
+		ArrayList<SerialClassInfo.ClassInfo> registry = new ArrayList<SerialClassInfo.ClassInfo>();
+		Serialization s2 = new Serialization(registry);
+		int classId = s2.registerClass(Bean1.class);
+		SerialClassInfo.ClassInfo ci = registry.get(classId);
+
+		// class id, field count, field ids and values with headers
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.write(SerializationHeader.NORMAL);
+		LongPacker.packInt(out, classId);
+		LongPacker.packInt(out, 3);
+		LongPacker.packInt(out, ci.getFieldId("field1"));
+		s2.serialize(out, "old");
+		LongPacker.packInt(out, ci.getFieldId("intField"));
+		s2.serialize(out, 7);
+		LongPacker.packInt(out, ci.getFieldId("longField"));
+		s2.serialize(out, -1L);
+
+		Bean1 bx = (Bean1) s2.deserialize(buf.toByteArray());
+		assertEquals("old", bx.field1);
+		assertNull(bx.field2);
+		assertEquals(7, bx.intField);
+		assertEquals(-1L, bx.longField);
+	}
+
+	public void testPresenceBitmap() throws Exception {
+		SparseBean e = new SparseBean();
+		Serialization s2 = new Serialization();
+		int emptySize = s2.serialize(e).length;
+		// header, class id and 4 bytes of bitmap
+		assertEquals(6, emptySize);
+
+		e.f5 = "abc";
+		e.i3 = 5;
+		e.d4 = -0d;
+		SparseBean ex = (SparseBean) s2.deserialize(s2.serialize(e));
+		assertEquals("abc", ex.f5);
+		assertEquals(5, ex.i3);
+		assertEquals(Double.doubleToLongBits(-0d),
+				Double.doubleToLongBits(ex.d4));
+		assertNull(ex.f1);
+		assertEquals(0, ex.i1);
+	}
+
+	public void testEnumFields() throws Exception {
+		EnumBean e = new EnumBean();
+		e.color = Color.GREEN;
+		e.any = Color.BLUE;
+		Serialization s2 = new Serialization();
+		byte[] buf = s2.serialize(e);
+		EnumBean ex = (EnumBean) s2.deserialize(buf);
+		assertSame(Color.GREEN, ex.color);
+		assertNull(ex.other);
+		assertSame(Color.BLUE, ex.any);
+		// header, class id, two ordinals, enum header, class id and ordinal
+		assertEquals(7, buf.length);
+	}
+
 	public void testRecursion() throws Exception {
 		AbstractMap.SimpleEntry b = new AbstractMap.SimpleEntry("abcd", null);
 		b.setValue(b.getKey());
@@ -18,10 +18,12 @@ package com.romix.quickser;
 import junit.framework.TestCase;
 
 import java.io.*;
+import java.lang.annotation.RetentionPolicy;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("unchecked")
 public class SerializationTest extends TestCase {
@@ -59,6 +61,16 @@ public class SerializationTest extends TestCase {
 		}
 	}
 
+	public void testByte() throws IOException, ClassNotFoundException {
+		byte[] vals = { Byte.MIN_VALUE, -10, -1, 0, 1, 2, 10, Byte.MAX_VALUE };
+		for (byte i : vals) {
+			byte[] buf = ser.serialize(i);
+			Object l2 = ser.deserialize(buf);
+			assertTrue(l2.getClass() == Byte.class);
+			assertEquals(l2, i);
+		}
+	}
+
 	public void testDouble() throws IOException, ClassNotFoundException {
 		double[] vals = { 1f, 0f, -1f, Math.PI, 255, 256, Short.MAX_VALUE,
 				Short.MAX_VALUE + 1, -100 };
@@ -283,6 +295,36 @@ public class SerializationTest extends TestCase {
 		assertEquals(l2, s);
 	}
 
+	public void testStringEncodings() throws IOException,
+			ClassNotFoundException {
+		String[] strings = { "abc", "Ciudad Bol\u00edva\u00ff",
+				"\u4e2d\u6587 text", "emoji \ud83d\ude00",
+				"lone \ud83d surrogate", "\u0000\u07ff\u0800\uffff" };
+		for (String s : strings) {
+			assertEquals(s, ser.deserialize(ser.serialize(s)));
+
+			// generic DataOutput and DataInput
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ser.serialize(new DataOutputStream(out), s);
+			assertTrue(Arrays.equals(ser.serialize(s), out.toByteArray()));
+			assertEquals(s, ser.deserialize(new DataInputStream(
+					new ByteArrayInputStream(out.toByteArray()))));
+		}
+		// latin-1 string takes one byte per char
+		assertEquals(2 + 4, ser.serialize("ab\u00e9\u00ff").length);
+	}
+
+	public void testOldStringFormat() throws IOException,
+			ClassNotFoundException {
+		String s = "\u4e2d\u6587";
+		DataInputOutput out = new DataInputOutput();
+		out.write(SerializationHeader.STRING);
+		LongPacker.packInt(out, s.length());
+		for (int i = 0; i < s.length(); i++)
+			LongPacker.packInt(out, s.charAt(i));
+		assertEquals(s, ser.deserialize(out.toByteArray()));
+	}
+
 	public void testSerializationHeader() throws IOException {
 		ByteArrayOutputStream b = new ByteArrayOutputStream();
 		new java.io.ObjectOutputStream(b).writeObject("lalala");
@@ -324,6 +366,127 @@ public class SerializationTest extends TestCase {
 		assertTrue(Arrays.equals(l, (int[]) deserialize));
 	}
 
+	public void testSignedPackedArrays() throws ClassNotFoundException,
+			IOException {
+		// short arrays are not bit packed
+		int[] ticks = new int[7];
+		long[] offsets = new long[7];
+		for (int i = 0; i < ticks.length; i++) {
+			ticks[i] = (i % 7) - 3;
+			offsets[i] = -i;
+		}
+		byte[] buf = ser.serialize(ticks);
+		assertEquals(SerializationHeader.ARRAY_INT_PACKED_SIGNED, buf[0]);
+		assertEquals(2 + ticks.length, buf.length);
+		assertTrue(Arrays.equals(ticks, (int[]) ser.deserialize(buf)));
+		buf = ser.serialize(offsets);
+		assertEquals(SerializationHeader.ARRAY_LONG_PACKED_SIGNED, buf[0]);
+		assertTrue(Arrays.equals(offsets, (long[]) ser.deserialize(buf)));
+
+		// fixed size is used if it is smaller
+		int[] shorts = { -30000, 30000, -20000 };
+		buf = ser.serialize(shorts);
+		assertEquals(SerializationHeader.ARRAY_INT_S, buf[0]);
+		assertTrue(Arrays.equals(shorts, (int[]) ser.deserialize(buf)));
+
+		// large positive values before negative one
+		long[] l = { Long.MAX_VALUE, 3, -1, Long.MIN_VALUE };
+		assertTrue(Arrays.equals(l, (long[]) ser.deserialize(ser.serialize(l))));
+		int[] i = { Integer.MAX_VALUE, -5, Integer.MIN_VALUE };
+		assertTrue(Arrays.equals(i, (int[]) ser.deserialize(ser.serialize(i))));
+	}
+
+	public void testBitPackedArrays() throws ClassNotFoundException,
+			IOException {
+		Random r = new Random(1);
+		int[] ids = new int[1000];
+		long[] timestamps = new long[1000];
+		int[] codes = new int[1000];
+		long[] wide = new long[1000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = 1000000 + i * 3 + r.nextInt(3);
+			timestamps[i] = 1300000000000L + i * 1000L + r.nextInt(10);
+			codes[i] = -50 + r.nextInt(100);
+			wide[i] = r.nextLong() >>> 2;
+		}
+		byte[] buf = ser.serialize(ids);
+		assertEquals(SerializationHeader.ARRAY_INT_DELTA, buf[0]);
+		assertTrue(buf.length < ids.length);
+		assertTrue(Arrays.equals(ids, (int[]) ser.deserialize(buf)));
+
+		buf = ser.serialize(timestamps);
+		assertEquals(SerializationHeader.ARRAY_LONG_DELTA, buf[0]);
+		assertTrue(buf.length < 2 * timestamps.length);
+		assertTrue(Arrays.equals(timestamps, (long[]) ser.deserialize(buf)));
+
+		buf = ser.serialize(codes);
+		assertEquals(SerializationHeader.ARRAY_INT_FOR, buf[0]);
+		assertTrue(buf.length < codes.length);
+		assertTrue(Arrays.equals(codes, (int[]) ser.deserialize(buf)));
+
+		buf = ser.serialize(wide);
+		assertEquals(SerializationHeader.ARRAY_LONG_FOR, buf[0]);
+		assertTrue(Arrays.equals(wide, (long[]) ser.deserialize(buf)));
+
+		// extreme ranges and all bit widths
+		long[] l = { Long.MIN_VALUE, Long.MAX_VALUE, 0, -1, 1, 2, 3, 4, 5 };
+		assertTrue(Arrays.equals(l, (long[]) ser.deserialize(ser.serialize(l))));
+		int[] i = { Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1, 1, 2, 3, 4 };
+		assertTrue(Arrays.equals(i, (int[]) ser.deserialize(ser.serialize(i))));
+		for (int bits = 0; bits <= 64; bits++) {
+			long[] a = new long[13];
+			for (int k = 0; k < a.length; k++)
+				a[k] = bits == 0 ? 7 : r.nextLong() >>> (64 - bits);
+			DataInputOutput out = new DataInputOutput();
+			BitPacker.packLongs(out, a, 0, 0, false, bits);
+			assertEquals(BitPacker.packedSize(a.length, bits), out.getPos());
+			long[] a2 = new long[a.length];
+			BitPacker.unpackLongs(new DataInputOutput(out.toByteArray()), a2, 0, 0,
+					false, bits);
+			if (bits > 0)
+				assertTrue(Arrays.equals(a, a2));
+		}
+	}
+
+	public void testRunsAndSparseArrays() throws ClassNotFoundException,
+			IOException {
+		int[] features = new int[10000];
+		features[3] = 7;
+		features[5000] = -1;
+		features[9999] = Integer.MAX_VALUE;
+		byte[] buffer = new byte[4096];
+		Arrays.fill(buffer, 100, 200, (byte) -1);
+		long[] levels = new long[300];
+		Arrays.fill(levels, 0, 100, 5L);
+		Arrays.fill(levels, 100, 300, Long.MIN_VALUE);
+		double[] weights = new double[1000];
+		weights[10] = 0.5;
+		weights[20] = -0.0;
+		weights[999] = Double.NaN;
+
+		byte[] buf = ser.serialize(features);
+		assertEquals(SerializationHeader.ARRAY_SPARSE, buf[0]);
+		assertTrue(buf.length < 20);
+		assertTrue(Arrays.equals(features, (int[]) ser.deserialize(buf)));
+		buf = ser.serialize(buffer);
+		assertEquals(SerializationHeader.ARRAY_RUNS, buf[0]);
+		assertTrue(buf.length < 20);
+		assertTrue(Arrays.equals(buffer, (byte[]) ser.deserialize(buf)));
+		buf = ser.serialize(levels);
+		assertEquals(SerializationHeader.ARRAY_RUNS, buf[0]);
+		assertTrue(Arrays.equals(levels, (long[]) ser.deserialize(buf)));
+		buf = ser.serialize(weights);
+		assertEquals(SerializationHeader.ARRAY_SPARSE, buf[0]);
+		assertTrue(Arrays.equals(weights, (double[]) ser.deserialize(buf)));
+
+		// dense arrays keep other encodings
+		byte[] dense = new byte[100];
+		new Random(1).nextBytes(dense);
+		buf = ser.serialize(dense);
+		assertEquals(SerializationHeader.ARRAY_BYTE_INT, buf[0]);
+		assertTrue(Arrays.equals(dense, (byte[]) ser.deserialize(buf)));
+	}
+
 	public void testNegativeShortArray() throws ClassNotFoundException,
 			IOException {
 		short[] l = new short[] { -12 };
@@ -343,6 +506,47 @@ public class SerializationTest extends TestCase {
 		assertTrue(Arrays.equals(l, (double[]) deserialize));
 	}
 
+	public void testFloatCompression() throws ClassNotFoundException,
+			IOException {
+		double[] series = new double[500];
+		float[] floats = new float[500];
+		for (int i = 0; i < series.length; i++) {
+			series[i] = 20.5 + (i % 4) * 0.25;
+			floats[i] = (float) series[i];
+		}
+		Random r = new Random(1);
+		double[] noise = new double[100];
+		for (int i = 0; i < noise.length; i++)
+			noise[i] = Double.longBitsToDouble(r.nextLong());
+		double[] special = { Double.NaN, -0.0, 0.0, Double.MIN_VALUE,
+				Double.MAX_VALUE, Double.NEGATIVE_INFINITY, 1, 1, 1.0000001 };
+
+		// disabled by default
+		assertEquals(SerializationHeader.DOUBLE_ARRAY, ser.serialize(series)[0]);
+		ser.setFloatCompression(true);
+		byte[] buf = ser.serialize(series);
+		assertEquals(SerializationHeader.DOUBLE_ARRAY_XOR, buf[0]);
+		assertTrue(buf.length < series.length * 2);
+		assertTrue(Arrays.equals(series, (double[]) ser.deserialize(buf)));
+		buf = ser.serialize(floats);
+		assertEquals(SerializationHeader.FLOAT_ARRAY_XOR, buf[0]);
+		assertTrue(Arrays.equals(floats, (float[]) ser.deserialize(buf)));
+
+		// random values are not compressed
+		buf = ser.serialize(noise);
+		assertEquals(SerializationHeader.DOUBLE_ARRAY, buf[0]);
+		assertTrue(Arrays.equals(noise, (double[]) ser.deserialize(buf)));
+
+		for (Object o : new Object[] { special, new double[0],
+				new float[] { Float.NaN, -0f, 3f, 3f, 3.5f } }) {
+			Object o2 = ser.deserialize(ser.serialize(o));
+			if (o instanceof double[])
+				assertTrue(Arrays.equals((double[]) o, (double[]) o2));
+			else
+				assertTrue(Arrays.equals((float[]) o, (float[]) o2));
+		}
+	}
+
 	public void testFloatArray() throws ClassNotFoundException, IOException {
 		float[] l = new float[] { 1F, 1.234235F };
 		Object deserialize = ser.deserialize(ser.serialize(l));
@@ -361,6 +565,108 @@ public class SerializationTest extends TestCase {
 		assertTrue(Arrays.equals(l, (char[]) deserialize));
 	}
 
+	public void testPackedBooleanAndCharArrays() throws IOException,
+			ClassNotFoundException {
+		boolean[] b = new boolean[19];
+		b[0] = b[7] = b[8] = b[18] = true;
+		char[] latin1 = "abc\u00e9\u00ff".toCharArray();
+		char[] utf8 = "a\u07ff\u4e2d\ud83d\ude00\ud83d".toCharArray();
+		for (Object o : new Object[] { b, latin1, utf8, 'x', '\u4e2d' }) {
+			byte[] buf = ser.serialize(o);
+
+			// generic DataOutput and DataInput
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ser.serialize(new DataOutputStream(out), o);
+			assertTrue(Arrays.equals(buf, out.toByteArray()));
+			Object o2 = ser.deserialize(new DataInputStream(
+					new ByteArrayInputStream(buf)));
+			Object o3 = ser.deserialize(buf);
+			if (o instanceof boolean[]) {
+				assertTrue(Arrays.equals(b, (boolean[]) o2));
+				assertTrue(Arrays.equals(b, (boolean[]) o3));
+			} else if (o instanceof char[]) {
+				assertTrue(Arrays.equals((char[]) o, (char[]) o2));
+				assertTrue(Arrays.equals((char[]) o, (char[]) o3));
+			} else {
+				assertEquals(o, o2);
+				assertEquals(o, o3);
+			}
+		}
+		// header, size and 3 bytes of bits
+		assertEquals(2 + 3, ser.serialize(b).length);
+		assertEquals(2 + 5, ser.serialize(latin1).length);
+		assertEquals(2, ser.serialize('x').length);
+	}
+
+	public void testOldCharFormat() throws IOException,
+			ClassNotFoundException {
+		DataInputOutput out = new DataInputOutput();
+		out.write(SerializationHeader.CHAR_ARRAY);
+		LongPacker.packInt(out, 2);
+		out.writeInt('a');
+		out.writeInt('\u4e2d');
+		out.write(SerializationHeader.BOOLEAN_ARRAY);
+		LongPacker.packInt(out, 2);
+		out.writeBoolean(false);
+		out.writeBoolean(true);
+		DataInputOutput in = new DataInputOutput(out.toByteArray());
+		assertTrue(Arrays.equals(new char[] { 'a', '\u4e2d' },
+				(char[]) ser.deserialize(in)));
+		assertTrue(Arrays.equals(new boolean[] { false, true },
+				(boolean[]) ser.deserialize(in)));
+	}
+
+	public void testEnum() throws IOException, ClassNotFoundException {
+		ArrayList l = new ArrayList();
+		l.add(TimeUnit.SECONDS);
+		l.add(RetentionPolicy.RUNTIME);
+		l.add(TimeUnit.SECONDS);
+		l.add(SerialClassInfoTest.Color.GREEN);
+		byte[] buf = ser.serialize(l);
+		List l2 = (List) ser.deserialize(buf);
+		assertEquals(l, l2);
+		assertSame(SerialClassInfoTest.Color.GREEN, l2.get(3));
+		// header, class id and ordinal, no field count
+		assertEquals(3, ser.serialize(TimeUnit.DAYS).length);
+		assertSame(TimeUnit.DAYS, ser.deserialize(ser.serialize(TimeUnit.DAYS)));
+	}
+
+	public void testEnumSetAndMap() throws IOException,
+			ClassNotFoundException {
+		EnumSet<TimeUnit> units = EnumSet.of(TimeUnit.SECONDS, TimeUnit.DAYS);
+		byte[] buf = ser.serialize(units);
+		// header, class id, bit count and one byte of bitmap
+		assertEquals(4, buf.length);
+		assertEquals(units, ser.deserialize(buf));
+
+		EnumSet<Character.UnicodeScript> jumbo = EnumSet.of(
+				Character.UnicodeScript.LATIN, Character.UnicodeScript.UNKNOWN);
+		assertEquals(jumbo, ser.deserialize(ser.serialize(jumbo)));
+		EnumSet<TimeUnit> none = EnumSet.noneOf(TimeUnit.class);
+		EnumSet none2 = (EnumSet) ser.deserialize(ser.serialize(none));
+		assertTrue(none2.isEmpty());
+		none2.add(TimeUnit.HOURS);
+
+		EnumMap<TimeUnit, Object> map = new EnumMap<TimeUnit, Object>(
+				TimeUnit.class);
+		map.put(TimeUnit.MINUTES, "minute");
+		map.put(TimeUnit.DAYS, null);
+		map.put(TimeUnit.NANOSECONDS, map);
+		EnumMap map2 = (EnumMap) ser.deserialize(ser.serialize(map));
+		assertEquals(3, map2.size());
+		assertEquals("minute", map2.get(TimeUnit.MINUTES));
+		assertTrue(map2.containsKey(TimeUnit.DAYS));
+		assertSame(map2, map2.get(TimeUnit.NANOSECONDS));
+		EnumMap empty = (EnumMap) ser.deserialize(ser.serialize(new EnumMap(
+				TimeUnit.class)));
+		assertTrue(empty.isEmpty());
+		empty.put(TimeUnit.SECONDS, "second");
+		assertEquals("second", empty.get(TimeUnit.SECONDS));
+		assertEquals("{SECONDS=second}", empty.toString());
+		assertSame(TimeUnit.class, Serialization.enumMapKeyType(new EnumMap(
+				TimeUnit.class)));
+	}
+
 	public void testDate() throws IOException, ClassNotFoundException {
 		Date d = new Date(6546565565656L);
 		assertEquals(d, ser.deserialize(ser.serialize(d)));
@@ -382,6 +688,430 @@ public class SerializationTest extends TestCase {
 		assertEquals(d, ser.deserialize(ser.serialize(d)));
 	}
 
+	public void testPackedNumbersAndDates() throws IOException,
+			ClassNotFoundException {
+		Object[] values = { BigInteger.ZERO, BigInteger.valueOf(-5),
+				BigInteger.valueOf(Long.MAX_VALUE),
+				BigInteger.valueOf(Long.MIN_VALUE),
+				BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE),
+				new BigDecimal("19.99"), new BigDecimal("-0.0001"),
+				new BigDecimal("1E+5"), new BigDecimal("1.000"),
+				new BigDecimal("-9223372036854775808.5"),
+				new BigDecimal("-53534534534534445656E+7"), new Date(0),
+				new Date(-1), new Date(1300000000000L),
+				new Date(1300000000001L), new Date(Long.MAX_VALUE),
+				new Date(Long.MIN_VALUE) };
+		for (Object o : values) {
+			Object o2 = ser.deserialize(ser.serialize(o));
+			assertEquals(o, o2);
+			if (o instanceof BigDecimal)
+				assertEquals(((BigDecimal) o).scale(), ((BigDecimal) o2).scale());
+		}
+		// header, unscaled value and scale
+		assertEquals(4, ser.serialize(new BigDecimal("19.99")).length);
+		assertEquals(3, ser.serialize(BigInteger.valueOf(1000)).length);
+
+		// whole seconds close to epoch
+		Date d = new Date(1300000000000L);
+		int size = ser.serialize(d).length;
+		assertTrue(size < 9);
+		ser.setDateEpoch(1299999990000L);
+		assertEquals(2, ser.serialize(d).length);
+		assertEquals(d, ser.deserialize(ser.serialize(d)));
+		for (Object o : values) {
+			if (o instanceof Date)
+				assertEquals(o, ser.deserialize(ser.serialize(o)));
+		}
+	}
+
+	public void testJdkValueTypes() throws IOException,
+			ClassNotFoundException {
+		BitSet bits = new BitSet();
+		bits.set(3);
+		bits.set(100);
+		Object[] values = { new UUID(-1L, 42L), bits, new BitSet(),
+				java.net.URI.create("http://example.com/a?b=c#d"),
+				Locale.US, Locale.ROOT, new Locale("ja", "JP", "JP"),
+				Locale.forLanguageTag("zh-Hant-TW"),
+				Locale.forLanguageTag("de-DE-u-co-phonebk"),
+				java.time.Instant.ofEpochSecond(-5, 999999999),
+				java.time.Instant.ofEpochSecond(1600000000L),
+				java.time.LocalDate.of(2020, 2, 29),
+				java.time.LocalDateTime.of(1969, 12, 31, 23, 59, 59, 1),
+				java.time.Duration.ofMillis(-1500),
+				java.util.Optional.empty(), java.util.Optional.of("x") };
+		for (Object o : values)
+			assertEquals(o, ser.deserialize(ser.serialize(o)));
+		assertEquals(17, ser.serialize(new UUID(1, 2)).length);
+		// extensions derived from variant do not need language tag
+		assertEquals(SerializationHeader.LOCALE, ser.serialize(new Locale(
+				"th", "TH", "TH"))[0] & 0xFF);
+		assertEquals(SerializationHeader.LOCALE_TAG, ser.serialize(Locale
+				.forLanguageTag("zh-Hant-TW"))[0] & 0xFF);
+		assertEquals(3, ser.serialize(java.time.Instant.ofEpochSecond(1))
+				.length);
+
+		java.util.concurrent.atomic.AtomicLong l = (java.util.concurrent.atomic.AtomicLong) ser
+				.deserialize(ser.serialize(new java.util.concurrent.atomic.AtomicLong(
+						-7)));
+		assertEquals(-7, l.get());
+		assertEquals("abc", ser.deserialize(
+				ser.serialize(new StringBuilder("abc"))).toString());
+
+		// references to objects in and around optional value
+		String s = "shared string, long enough to be tracked";
+		List list = new ArrayList();
+		list.add(java.util.Optional.of(s));
+		list.add(s);
+		list.add(list.get(0));
+		List list2 = (List) ser.deserialize(ser.serialize(list));
+		assertEquals(list, list2);
+		assertSame(((java.util.Optional) list2.get(0)).get(), list2.get(1));
+		assertSame(list2.get(0), list2.get(2));
+	}
+
+	static class MyMap extends HashMap<Object, Object> {
+	}
+
+	static class MyFieldMap extends HashMap<Object, Object> {
+		int extra = 5;
+	}
+
+	public void testGenericCollections() throws IOException,
+			ClassNotFoundException {
+		MyMap map = new MyMap();
+		map.put("a", 1);
+		map.put(2, map);
+		MyMap map2 = (MyMap) ser.deserialize(ser.serialize(map));
+		assertEquals(1, map2.get("a"));
+		assertSame(map2, map2.get(2));
+
+		// entries of subclass with own fields would be lost
+		MyFieldMap fieldMap = new MyFieldMap();
+		fieldMap.put("a", "b");
+		try {
+			ser.serialize(fieldMap);
+			fail();
+		} catch (NotSerializableException e) {
+			// expected
+		}
+
+		java.util.concurrent.ConcurrentHashMap<Object, Object> chm = new java.util.concurrent.ConcurrentHashMap<Object, Object>();
+		chm.put("k", "v");
+		chm.put(1L, Arrays.asList(1, 2));
+		assertEquals(chm, ser.deserialize(ser.serialize(chm)));
+
+		ArrayDeque<Object> deque = new ArrayDeque<Object>();
+		deque.add("x");
+		deque.add(3);
+		assertEquals(new ArrayList<Object>(deque), new ArrayList<Object>(
+				(ArrayDeque) ser.deserialize(ser.serialize(deque))));
+
+		java.util.concurrent.CopyOnWriteArrayList<Object> cow = new java.util.concurrent.CopyOnWriteArrayList<Object>();
+		cow.add("a");
+		cow.add(null);
+		cow.add(cow.get(0));
+		assertEquals(cow, ser.deserialize(ser.serialize(cow)));
+
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(4,
+				Collections.reverseOrder());
+		queue.add(1);
+		queue.add(5);
+		queue.add(3);
+		List list = new ArrayList();
+		list.add(queue);
+		list.add(queue);
+		List list2 = (List) ser.deserialize(ser.serialize(list));
+		PriorityQueue<Integer> queue2 = (PriorityQueue<Integer>) list2.get(0);
+		assertSame(queue2, list2.get(1));
+		assertEquals(Integer.valueOf(5), queue2.poll());
+		assertEquals(Integer.valueOf(3), queue2.poll());
+
+		Stack<Object> stack = new Stack<Object>();
+		stack.push("s");
+		assertEquals(stack, ser.deserialize(ser.serialize(stack)));
+
+		java.util.concurrent.LinkedBlockingQueue<Object> unbounded = new java.util.concurrent.LinkedBlockingQueue<Object>();
+		unbounded.add(1);
+		assertEquals(Integer.MAX_VALUE - 1,
+				((java.util.concurrent.LinkedBlockingQueue) ser.deserialize(ser
+						.serialize(unbounded))).remainingCapacity());
+
+		java.util.concurrent.LinkedBlockingQueue<Object> bounded = new java.util.concurrent.LinkedBlockingQueue<Object>(
+				2);
+		bounded.add(1);
+		java.util.concurrent.LinkedBlockingQueue<Object> bounded2 = (java.util.concurrent.LinkedBlockingQueue<Object>) ser
+				.deserialize(ser.serialize(bounded));
+		assertEquals(1, bounded2.remainingCapacity());
+		assertEquals(1, bounded2.peek());
+		assertTrue(bounded2.offer(2));
+		assertFalse(bounded2.offer(3));
+	}
+
+	static class MyTreeMap extends TreeMap<Object, Object> {
+		MyTreeMap(Comparator<Object> comparator) {
+			super(comparator);
+		}
+	}
+
+	static class MyTreeSet extends TreeSet<Object> {
+		MyTreeSet(Comparator<Object> comparator) {
+			super(comparator);
+		}
+	}
+
+	static class MyPriorityQueue extends PriorityQueue<Object> {
+		MyPriorityQueue(Comparator<Object> comparator) {
+			super(11, comparator);
+		}
+	}
+
+	static class PlainTreeSet extends TreeSet<Object> {
+	}
+
+	public void testSortedCollections() throws IOException,
+			ClassNotFoundException {
+		java.util.concurrent.ConcurrentSkipListMap<Object, Object> skipMap = new java.util.concurrent.ConcurrentSkipListMap<Object, Object>(
+				Collections.reverseOrder());
+		skipMap.put(1, "a");
+		skipMap.put(3, "b");
+		java.util.concurrent.ConcurrentSkipListMap skipMap2 = (java.util.concurrent.ConcurrentSkipListMap) ser
+				.deserialize(ser.serialize(skipMap));
+		assertEquals(skipMap, skipMap2);
+		assertEquals(3, skipMap2.firstKey());
+
+		java.util.concurrent.ConcurrentSkipListSet<Object> skipSet = new java.util.concurrent.ConcurrentSkipListSet<Object>();
+		skipSet.add("y");
+		skipSet.add("x");
+		assertEquals(skipSet, ser.deserialize(ser.serialize(skipSet)));
+
+		MyTreeMap treeMap = new MyTreeMap(Collections.reverseOrder());
+		treeMap.put("a", 1);
+		treeMap.put("b", treeMap);
+		MyTreeMap treeMap2 = (MyTreeMap) ser.deserialize(ser
+				.serialize(treeMap));
+		assertEquals("b", treeMap2.firstKey());
+		assertSame(treeMap2, treeMap2.get("b"));
+		assertEquals(1, treeMap2.get("a"));
+
+		MyTreeSet treeSet = new MyTreeSet(Collections.reverseOrder());
+		treeSet.add(1);
+		treeSet.add(2);
+		MyTreeSet treeSet2 = (MyTreeSet) ser.deserialize(ser
+				.serialize(treeSet));
+		assertEquals(treeSet, treeSet2);
+		assertEquals(2, treeSet2.first());
+		treeSet2.add(3);
+		assertEquals(3, treeSet2.first());
+
+		MyPriorityQueue queue = new MyPriorityQueue(Collections.reverseOrder());
+		queue.add(1);
+		queue.add(5);
+		MyPriorityQueue queue2 = (MyPriorityQueue) ser.deserialize(ser
+				.serialize(queue));
+		assertEquals(5, queue2.poll());
+		assertEquals(1, queue2.poll());
+		assertNull(queue2.poll());
+
+		// sorted subclass which can not be recreated with its comparator
+		try {
+			ser.serialize(new PlainTreeSet());
+			fail();
+		} catch (NotSerializableException e) {
+			// expected
+		}
+	}
+
+	public void testWrapperCollections() throws Exception {
+		assertEquals(1, ser.serialize(Collections.emptyList()).length);
+		assertEquals(1, ser.serialize(Collections.emptySet()).length);
+		assertEquals(1, ser.serialize(Collections.emptyMap()).length);
+		assertSame(Collections.EMPTY_LIST, ser.deserialize(ser
+				.serialize(Collections.emptyList())));
+
+		TreeSet<String> sorted = new TreeSet<String>(Collections
+				.reverseOrder());
+		sorted.add("a");
+		sorted.add("b");
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put("z", 1);
+		map.put("a", null);
+		List<Object> values = new ArrayList<Object>(Arrays.asList(
+				Collections.singletonList("x"),
+				Collections.singleton(null), Collections.singletonMap("k", 2),
+				Collections.unmodifiableList(new ArrayList(Arrays.asList(1, 2))),
+				Collections.unmodifiableSet(new HashSet(Arrays.asList(1, 2))),
+				Collections.unmodifiableMap(map),
+				Collections.unmodifiableSortedSet(sorted),
+				Arrays.asList("a", null, "c")));
+		if (Serialization.LIST_OF != null) {
+			// Java 9 immutable collections
+			values.add(invoke(Serialization.LIST_OF));
+			values.add(invoke(Serialization.LIST_OF, 1));
+			values.add(invoke(Serialization.SET_OF, "a", "b", "c"));
+			values.add(invoke(Serialization.MAP_OF_ENTRIES,
+					new AbstractMap.SimpleEntry("k", "v")));
+			List subList = ((List) invoke(Serialization.LIST_OF, 1, 2, 3))
+					.subList(1, 3);
+			assertEquals(subList, ser.deserialize(ser.serialize(subList)));
+		}
+		for (Object o : values) {
+			Object o2 = ser.deserialize(ser.serialize(o));
+			assertEquals(o, o2);
+			assertEquals(o.getClass(), o2.getClass());
+		}
+		SortedSet sorted2 = (SortedSet) ser.deserialize(ser.serialize(Collections
+				.unmodifiableSortedSet(sorted)));
+		assertEquals("b", sorted2.first());
+		try {
+			((Collection) ser.deserialize(ser.serialize(Collections
+					.unmodifiableCollection(sorted)))).add("c");
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+
+		// references into and out of wrappers
+		List inner = new ArrayList();
+		List list = new ArrayList();
+		list.add(Collections.singletonList(inner));
+		list.add(inner);
+		list.add(list.get(0));
+		List list2 = (List) ser.deserialize(ser.serialize(list));
+		assertSame(((List) list2.get(0)).get(0), list2.get(1));
+		assertSame(list2.get(0), list2.get(2));
+	}
+
+	public void testSelfReferenceFromContents() throws Exception {
+		List<Object> inner = new ArrayList<Object>();
+		List<Object> singleton = Collections.singletonList((Object) inner);
+		inner.add(singleton);
+		assertNotRead(singleton);
+
+		inner = new ArrayList<Object>();
+		java.util.Optional<Object> optional = java.util.Optional
+				.of((Object) inner);
+		inner.add(optional);
+		assertNotRead(optional);
+
+		if (Serialization.LIST_OF != null) {
+			inner = new ArrayList<Object>();
+			Object immutable = invoke(Serialization.LIST_OF, inner);
+			inner.add(immutable);
+			assertNotRead(immutable);
+		}
+
+		// elements of unmodifiable view are read after the view is created
+		inner = new ArrayList<Object>();
+		List<Object> view = Collections.unmodifiableList(inner);
+		inner.add(view);
+		List view2 = (List) ser.deserialize(ser.serialize(view));
+		assertSame(view2, view2.get(0));
+	}
+
+	private void assertNotRead(Object o) throws Exception {
+		byte[] buf = ser.serialize(o);
+		try {
+			ser.deserialize(buf);
+			fail();
+		} catch (InvalidObjectException e) {
+			// expected
+		}
+	}
+
+	private static Object invoke(java.lang.reflect.Method m, Object... args)
+			throws Exception {
+		Object[] a = (Object[]) java.lang.reflect.Array.newInstance(m
+				.getParameterTypes()[0].getComponentType(), args.length);
+		System.arraycopy(args, 0, a, 0, args.length);
+		return m.invoke(null, new Object[] { a });
+	}
+
+	public void testHomogeneousElements() throws IOException,
+			ClassNotFoundException {
+		List<Named> list = new ArrayList<Named>();
+		for (int i = 0; i < 100; i++) {
+			Named n = new Named();
+			n.first = "n" + i;
+			list.add(n);
+		}
+		list.add(null);
+		list.add(list.get(3));
+		int size = ser.serialize(list).length;
+		List<Named> list2 = (List<Named>) ser.deserialize(ser.serialize(list));
+		assertEquals(list.size(), list2.size());
+		assertEquals("n5", list2.get(5).first);
+		assertNull(list2.get(100));
+		assertSame(list2.get(3), list2.get(101));
+
+		// mixed list has header for each element
+		List mixed = new ArrayList(list);
+		mixed.add("x");
+		assertTrue(ser.serialize(mixed).length > size + 100);
+
+		Named[] array = list.toArray(new Named[0]);
+		Named[] array2 = (Named[]) ser.deserialize(ser.serialize(array));
+		assertEquals("n7", array2[7].first);
+		assertSame(array2[3], array2[101]);
+
+		String shared = "long string, which is tracked";
+		String[] strings = { "a", null, shared, shared, "" };
+		String[] strings2 = (String[]) ser.deserialize(ser.serialize(strings));
+		assertTrue(Arrays.equals(strings, strings2));
+		assertSame(strings2[2], strings2[3]);
+
+		Vector vector = new Vector(Arrays.asList("a", "b"));
+		assertEquals(vector, ser.deserialize(ser.serialize(vector)));
+		java.util.LinkedList linked = new java.util.LinkedList(list);
+		assertEquals(linked.size(), ((List) ser.deserialize(ser
+				.serialize(linked))).size());
+
+		ser.setReferenceTracking(false);
+		list.remove(101);
+		list2 = (List<Named>) ser.deserialize(ser.serialize(list));
+		assertEquals("n99", list2.get(99).first);
+	}
+
+	public void testPackedNumbers() throws IOException,
+			ClassNotFoundException {
+		List<Integer> ints = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++)
+			ints.add(i % 7 == 0 ? null : -i);
+		byte[] b = ser.serialize(ints);
+		assertEquals(SerializationHeader.PACKED_NUMBERS, b[0] & 0xFF);
+		assertTrue(b.length < 1000 * 2);
+		assertEquals(ints, ser.deserialize(b));
+
+		Long[] longs = new Long[300];
+		for (int i = 0; i < longs.length; i++)
+			longs[i] = Long.MIN_VALUE + i;
+		Long[] longs2 = (Long[]) ser.deserialize(ser.serialize(longs));
+		assertTrue(Arrays.equals(longs, longs2));
+		Object[] doubles = new Object[10];
+		Arrays.fill(doubles, 2.5d);
+		doubles[4] = null;
+		assertTrue(Arrays.equals(doubles, (Object[]) ser.deserialize(ser
+				.serialize(doubles))));
+
+		Set<Short> shorts = new HashSet<Short>();
+		for (short i = 0; i < 20; i++)
+			shorts.add(i);
+		assertEquals(shorts, ser.deserialize(ser.serialize(shorts)));
+		Collection[] collections = { new LinkedHashSet(ints.subList(1, 20)),
+				new Vector(ints), new java.util.LinkedList(ints) };
+		for (Collection c : collections) {
+			Collection c2 = (Collection) ser.deserialize(ser.serialize(c));
+			assertEquals(c.getClass(), c2.getClass());
+			assertEquals(new ArrayList(c), new ArrayList(c2));
+		}
+
+		// list referenced twice
+		List list = new ArrayList();
+		list.add(ints);
+		list.add(ints);
+		List list2 = (List) ser.deserialize(ser.serialize(list));
+		assertSame(list2.get(0), list2.get(1));
+	}
+
 	static class ClassWithListOfStringArrays implements Serializable {
 		List<String[]> strList = new ArrayList<String[]>();
 		
@@ -468,6 +1198,221 @@ public class SerializationTest extends TestCase {
 		
 	}
 	
+	static class Point {
+		final int x;
+		final int y;
+
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	static final Serializer<Point> POINT_SERIALIZER = new Serializer<Point>() {
+		public void serialize(DataOutput out, Point p) throws IOException {
+			out.writeInt(p.x);
+			out.writeInt(p.y);
+		}
+
+		public Point deserialize(DataInput in) throws IOException {
+			return new Point(in.readInt(), in.readInt());
+		}
+	};
+
+	public void testCustomSerializer() throws IOException,
+			ClassNotFoundException {
+		ser.register(Point.class, POINT_SERIALIZER);
+		Point p = new Point(-5, 7);
+		byte[] buf = ser.serialize(p);
+		// header, serializer id and two ints
+		assertEquals(10, buf.length);
+		Point p2 = (Point) ser.deserialize(buf);
+		assertEquals(-5, p2.x);
+		assertEquals(7, p2.y);
+
+		ArrayList l = new ArrayList();
+		l.add(p);
+		l.add(p);
+		ArrayList l2 = (ArrayList) ser.deserialize(ser.serialize(l));
+		assertTrue(l2.get(0) == l2.get(1));
+
+		try {
+			ser.register(Point.class, POINT_SERIALIZER);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	static final class Amount implements Serializable {
+		long cents;
+	}
+
+	static class Wallet implements Serializable {
+		Amount amount;
+	}
+
+	public void testCustomSerializerRegisteredAfterUse() throws IOException,
+			ClassNotFoundException {
+		Wallet w = new Wallet();
+		w.amount = new Amount();
+		w.amount.cents = 150;
+		// field of final class is written without class header
+		assertEquals(150, ((Wallet) ser.deserialize(ser.serialize(w))).amount.cents);
+
+		ser.register(Amount.class, new Serializer<Amount>() {
+			public void serialize(DataOutput out, Amount a) throws IOException {
+				out.writeLong(-a.cents);
+			}
+
+			public Amount deserialize(DataInput in) throws IOException {
+				Amount a = new Amount();
+				a.cents = -in.readLong();
+				return a;
+			}
+		});
+		byte[] buf = ser.serialize(w);
+		// header, class id, field header, serializer id and long
+		assertEquals(12, buf.length);
+		assertEquals(150, ((Wallet) ser.deserialize(buf)).amount.cents);
+	}
+
+	public void testLargeObjectGraph() throws IOException,
+			ClassNotFoundException {
+		ArrayList l = new ArrayList();
+		for (int i = 0; i < 10000; i++) {
+			String[] s = new String[] { "" + i };
+			l.add(s);
+			l.add(s);
+		}
+		byte[] buf = ser.serialize(l);
+		// object stack is reused, so the second call must give the same result
+		assertTrue(Arrays.equals(buf, ser.serialize(l)));
+
+		ArrayList l2 = (ArrayList) ser.deserialize(buf);
+		assertEquals(20000, l2.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals("" + i, ((String[]) l2.get(i * 2))[0]);
+			assertTrue(l2.get(i * 2) == l2.get(i * 2 + 1));
+		}
+	}
+
+	public void testTreeMode() throws IOException, ClassNotFoundException {
+		ClassWithListOfLists d = new ClassWithListOfLists(30);
+		ser.setReferenceTracking(false);
+		ClassWithListOfLists dd = (ClassWithListOfLists) ser.deserialize(ser
+				.serialize(d));
+		assertEquals(d, dd);
+
+		// shared objects are written twice
+		ArrayList l = new ArrayList();
+		String[] s = new String[] { "abc" };
+		l.add(s);
+		l.add(s);
+		ArrayList l2 = (ArrayList) ser.deserialize(ser.serialize(l));
+		assertFalse(l2.get(0) == l2.get(1));
+		assertEquals("abc", ((String[]) l2.get(1))[0]);
+
+		// reader does not need to be configured
+		l = new ArrayList();
+		l.add("abc");
+		l.add(new Date(1000));
+		assertEquals(l, new Serialization().deserialize(ser.serialize(l)));
+	}
+
+	public void testTreeModeCycle() throws IOException {
+		ArrayList l = new ArrayList();
+		l.add(l);
+		ser.setReferenceTracking(false, true);
+		try {
+			ser.serialize(l);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testImmutableValuesNotTracked() throws IOException,
+			ClassNotFoundException {
+		ArrayList l = new ArrayList();
+		Integer i = 1000;
+		String s = "ab";
+		String longString = "abcdefghijklmnopqrstuvwxyz";
+		int[] a = new int[] { 1 };
+		for (int j = 0; j < 3; j++) {
+			l.add(i);
+			l.add(s);
+			l.add(longString);
+			l.add(a);
+		}
+		ArrayList l2 = (ArrayList) ser.deserialize(ser.serialize(l));
+		assertEquals(12, l2.size());
+		assertEquals(i, l2.get(4));
+		assertEquals(s, l2.get(5));
+		assertTrue(l2.get(2) == l2.get(6));
+		assertTrue(l2.get(3) == l2.get(7));
+		// references count only tracked objects: list, long string and array
+		DataInputOutput out = new DataInputOutput();
+		ser.serialize(out, l);
+		byte[] buf = out.toByteArray();
+		assertEquals(SerializationHeader.OBJECT_STACK, buf[buf.length - 2] & 0xff);
+		assertEquals(2, buf[buf.length - 1]);
+
+		Object[] values = { new UUID(1, 2), java.net.URI.create("a:b"),
+				Locale.US, java.time.Instant.ofEpochSecond(1),
+				java.time.LocalDate.of(2020, 1, 1),
+				java.time.LocalDateTime.of(2020, 1, 1, 0, 0),
+				java.time.Duration.ofSeconds(1) };
+		for (Object v : values) {
+			assertFalse(Serialization.isTracked(v));
+			l = new ArrayList();
+			l.add(v);
+			l.add(v);
+			l.add(a);
+			l.add(a);
+			l2 = (ArrayList) ser.deserialize(ser.serialize(l));
+			assertEquals(v, l2.get(1));
+			// stack positions stay aligned on both sides
+			assertSame(l2.get(2), l2.get(3));
+		}
+	}
+
+	public void testDeduplication() throws IOException, ClassNotFoundException {
+		ArrayList l = new ArrayList();
+		for (int i = 0; i < 10; i++) {
+			// equal, but not identical values
+			l.add(new String("tenant name"));
+			l.add(new Date(1000));
+			l.add(new BigDecimal("1.50"));
+			l.add(Long.valueOf(100000L + i % 2));
+		}
+		int size = ser.serialize(l).length;
+		ser.setDeduplication(true, true);
+		byte[] buf = ser.serialize(l);
+		assertTrue(buf.length < size / 2);
+
+		ArrayList l2 = (ArrayList) new Serialization().deserialize(buf);
+		assertEquals(l, l2);
+		assertTrue(l2.get(0) == l2.get(4));
+		assertTrue(l2.get(1) == l2.get(5));
+		assertTrue(l2.get(2) == l2.get(6));
+		assertTrue(l2.get(3) == l2.get(11));
+
+		// string fields are deduplicated too
+		Named n = new Named();
+		n.first = new String("tenant name");
+		n.second = new String("tenant name");
+		ser.setReferenceTracking(false);
+		Named n2 = (Named) ser.deserialize(ser.serialize(n));
+		assertEquals("tenant name", n2.first);
+		assertTrue(n2.first == n2.second);
+	}
+
+	static class Named implements Serializable {
+		String first;
+		String second;
+	}
+
 	public void testClassWithListOfSringArrays() throws IOException, ClassNotFoundException {
 		ClassWithListOfStringArrays d = new ClassWithListOfStringArrays(30);
 		ClassWithListOfStringArrays dd = (ClassWithListOfStringArrays)ser.deserialize(ser.serialize(d));